@@ -0,0 +1,131 @@
+package li.cil.oc.example.machine.bench;
+
+import li.cil.oc.example.machine.Settings;
+import li.cil.oc.example.machine.TileEntityMachine;
+import li.cil.oc.example.machine.standin.StandIns;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the hot paths of the machine host: the per-tick update,
+ * saving and loading, component lookup by address, inventory reads and item
+ * churn. Run via the jmh Gradle task; results are written as JSON to
+ * build/reports/jmh/results.json so runs across releases can be compared.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TileEntityMachineBenchmark {
+    @Param({"5", "16", "64"})
+    public int slots;
+
+    private TileEntityMachine machine;
+    private String[] addresses;
+    private int nextAddress;
+    private ItemStack churnStack;
+    private int churnSlot;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StandIns.install();
+        StandIns.configureDirect();
+        Settings.slotCount = slots;
+
+        machine = StandIns.newMachine(0, 64, 0);
+        StandIns.fill(machine);
+        StandIns.connect(machine);
+        machine.start();
+
+        final List<String> known = new ArrayList<String>();
+        for (String address : machine.machine().components().keySet()) {
+            known.add(address);
+        }
+        addresses = known.toArray(new String[known.size()]);
+
+        churnSlot = machine.getSizeInventory() - 1;
+        churnStack = machine.getStackInSlot(churnSlot);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        machine.onChunkUnload();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @Benchmark
+    public void updateEntity() {
+        machine.updateEntity();
+    }
+
+    @Benchmark
+    public NBTTagCompound writeToNBT() {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        machine.writeToNBT(nbt);
+        return nbt;
+    }
+
+    @Benchmark
+    public TileEntityMachine roundTrip() {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        machine.writeToNBT(nbt);
+        final TileEntityMachine loaded = new TileEntityMachine();
+        loaded.readFromNBT(nbt);
+        return loaded;
+    }
+
+    @Benchmark
+    public int componentSlot() {
+        if (addresses.length == 0) return -1;
+        nextAddress = (nextAddress + 1) % addresses.length;
+        return machine.componentSlot(addresses[nextAddress]);
+    }
+
+    @Benchmark
+    public void getStackInSlot(Blackhole blackhole) {
+        for (int slot = 0; slot < machine.getSizeInventory(); ++slot) {
+            blackhole.consume(machine.getStackInSlot(slot));
+        }
+    }
+
+    @Benchmark
+    public void peekStackInSlot(Blackhole blackhole) {
+        for (int slot = 0; slot < machine.getSizeInventory(); ++slot) {
+            blackhole.consume(machine.peekStackInSlot(slot));
+        }
+    }
+
+    @Benchmark
+    public void internalComponents(Blackhole blackhole) {
+        for (ItemStack stack : machine.internalComponents()) {
+            blackhole.consume(stack);
+        }
+    }
+
+    @Benchmark
+    public void itemChurn() {
+        machine.setInventorySlotContents(churnSlot, null);
+        machine.setInventorySlotContents(churnSlot, churnStack);
+    }
+}
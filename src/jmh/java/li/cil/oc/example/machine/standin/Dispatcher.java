@@ -0,0 +1,57 @@
+package li.cil.oc.example.machine.standin;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Base for stand-ins of OC's API registries (items, drivers, machines and
+ * networks) and the objects they hand out only for setting things up.
+ * <p/>
+ * These are dynamic proxies, so that they only need to implement the methods
+ * the machine host actually uses, and keep working when the API adds methods.
+ * Anything not handled by {@link #handle} returns a default value (null,
+ * false or zero). Each call is a reflective dispatch, so everything the host
+ * calls on its hot paths (machines, nodes, networks, drivers) is a plain
+ * class instead, see StandInMachine and friends.
+ */
+abstract class Dispatcher implements InvocationHandler {
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, Dispatcher dispatcher) {
+        final T proxy = (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, dispatcher);
+        dispatcher.self = proxy;
+        return proxy;
+    }
+
+    // The proxy this dispatcher is handling calls for.
+    Object self;
+
+    @Override
+    public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if ("equals".equals(name) && args != null && args.length == 1) {
+            return proxy == args[0];
+        }
+        if ("hashCode".equals(name) && args == null) {
+            return System.identityHashCode(proxy);
+        }
+        if ("toString".equals(name) && args == null) {
+            return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        return handle(name, args != null ? args : new Object[0], method.getReturnType());
+    }
+
+    abstract Object handle(String name, Object[] args, Class<?> returnType) throws Exception;
+
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0f;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == char.class) return (char) 0;
+        return null;
+    }
+}
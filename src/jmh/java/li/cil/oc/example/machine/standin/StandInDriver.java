@@ -0,0 +1,51 @@
+package li.cil.oc.example.machine.standin;
+
+import li.cil.oc.api.driver.EnvironmentHost;
+import li.cil.oc.api.driver.Item;
+import li.cil.oc.api.network.ManagedEnvironment;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * Stand-in driver for all items known to {@link StandIns}. Creates
+ * {@link StandInEnvironment}s, which update each tick for "graphicsCard1"
+ * items, and keeps their data where OC's own drivers do.
+ */
+final class StandInDriver implements Item {
+    static final StandInDriver INSTANCE = new StandInDriver();
+
+    private StandInDriver() {
+    }
+
+    @Override
+    public boolean worksWith(ItemStack stack) {
+        return StandIns.isComponent(stack);
+    }
+
+    @Override
+    public ManagedEnvironment createEnvironment(ItemStack stack, EnvironmentHost host) {
+        return new StandInEnvironment(host, "graphicsCard1".equals(StandIns.nameOf(stack)));
+    }
+
+    @Override
+    public String slot(ItemStack stack) {
+        return "card";
+    }
+
+    @Override
+    public int tier(ItemStack stack) {
+        return 0;
+    }
+
+    @Override
+    public NBTTagCompound dataTag(ItemStack stack) {
+        if (!stack.hasTagCompound()) {
+            stack.setTagCompound(new NBTTagCompound());
+        }
+        final NBTTagCompound nbt = stack.getTagCompound();
+        if (!nbt.hasKey("oc:data")) {
+            nbt.setTag("oc:data", new NBTTagCompound());
+        }
+        return nbt.getCompoundTag("oc:data");
+    }
+}
@@ -0,0 +1,70 @@
+package li.cil.oc.example.machine.standin;
+
+import li.cil.oc.api.driver.EnvironmentHost;
+import li.cil.oc.api.network.ManagedEnvironment;
+import li.cil.oc.api.network.Message;
+import li.cil.oc.api.network.Node;
+import li.cil.oc.api.network.Visibility;
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * Stand-in for component environments. Saves its node's address and a data
+ * blob the size of {@link StandIns#componentDataSize}; components for
+ * "graphicsCard" items update each tick, like cards with state would. Keeps
+ * the host it was created for, like actual components do.
+ */
+public final class StandInEnvironment implements ManagedEnvironment {
+    private final Node node = new StandInNode(this, Visibility.Neighbors);
+    public final EnvironmentHost host;
+    private final boolean updating;
+    private byte[] data = new byte[StandIns.componentDataSize];
+    public long updates;
+
+    StandInEnvironment(EnvironmentHost host, boolean updating) {
+        this.host = host;
+        this.updating = updating;
+    }
+
+    @Override
+    public Node node() {
+        return node;
+    }
+
+    @Override
+    public boolean canUpdate() {
+        return updating;
+    }
+
+    @Override
+    public void update() {
+        ++updates;
+    }
+
+    @Override
+    public void onConnect(Node node) {
+    }
+
+    @Override
+    public void onDisconnect(Node node) {
+    }
+
+    @Override
+    public void onMessage(Message message) {
+    }
+
+    @Override
+    public void load(NBTTagCompound nbt) {
+        node.load(nbt.getCompoundTag("node"));
+        if (nbt.hasKey("data")) {
+            data = nbt.getByteArray("data");
+        }
+    }
+
+    @Override
+    public void save(NBTTagCompound nbt) {
+        final NBTTagCompound nodeNbt = new NBTTagCompound();
+        node.save(nodeNbt);
+        nbt.setTag("node", nodeNbt);
+        nbt.setByteArray("data", data);
+    }
+}
@@ -0,0 +1,267 @@
+package li.cil.oc.example.machine.standin;
+
+import li.cil.oc.api.machine.Architecture;
+import li.cil.oc.api.machine.Callback;
+import li.cil.oc.api.machine.Machine;
+import li.cil.oc.api.machine.MachineHost;
+import li.cil.oc.api.machine.Signal;
+import li.cil.oc.api.machine.Value;
+import li.cil.oc.api.network.Message;
+import li.cil.oc.api.network.Node;
+import li.cil.oc.api.network.Visibility;
+import net.minecraft.nbt.NBTTagCompound;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in for machines. Running machines behave like computers waiting for
+ * signals: each update processes one queued signal, burning a little "CPU
+ * time", and without signals they're idle. The saved state includes a byte
+ * array the size of {@link StandIns#stateSize}, standing in for the persisted
+ * architecture state, which is copied on every save, like a real machine
+ * would serialize it anew.
+ */
+public final class StandInMachine implements Machine {
+    private final MachineHost host;
+    private final StandInNode node = new StandInNode(this, Visibility.Network);
+    private final Map<String, String> components = new HashMap<String, String>();
+    private byte[] state = new byte[StandIns.stateSize];
+    private boolean running;
+    private double cpuTime;
+
+    // Names of the signals queued and not processed yet, oldest first.
+    public final List<String> signals = new ArrayList<String>();
+
+    StandInMachine(MachineHost host) {
+        this.host = host;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @Override
+    public MachineHost host() {
+        return host;
+    }
+
+    @Override
+    public Node node() {
+        return node;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean start() {
+        final boolean wasRunning = running;
+        running = true;
+        return !wasRunning;
+    }
+
+    @Override
+    public boolean stop() {
+        final boolean wasRunning = running;
+        running = false;
+        signals.clear();
+        return wasRunning;
+    }
+
+    @Override
+    public boolean signal(String name, Object... args) {
+        if (!running) return false;
+        signals.add(name);
+        return true;
+    }
+
+    @Override
+    public boolean canUpdate() {
+        return true;
+    }
+
+    @Override
+    public void update() {
+        if (running && !signals.isEmpty()) {
+            signals.remove(0);
+            cpuTime += 0.00005;
+        }
+    }
+
+    @Override
+    public double cpuTime() {
+        return cpuTime;
+    }
+
+    @Override
+    public double upTime() {
+        return cpuTime;
+    }
+
+    @Override
+    public Map<String, String> components() {
+        return components;
+    }
+
+    @Override
+    public int componentCount() {
+        return components.size();
+    }
+
+    @Override
+    public void onConnect(Node other) {
+        if (other != node && other.address() != null) {
+            components.put(other.address(), "standin");
+        }
+        host.onMachineConnect(other);
+    }
+
+    @Override
+    public void onDisconnect(Node other) {
+        if (other != node && other.address() != null) {
+            components.remove(other.address());
+        }
+        host.onMachineDisconnect(other);
+    }
+
+    @Override
+    public void onMessage(Message message) {
+        // Like OC's machines, minus the source's address as first argument.
+        final Object[] data = message.data();
+        if ("computer.signal".equals(message.name()) && data.length > 0 && data[0] instanceof String) {
+            signal((String) data[0]);
+        }
+    }
+
+    @Override
+    public void load(NBTTagCompound nbt) {
+        node.load(nbt.getCompoundTag("node"));
+        running = nbt.getBoolean("running");
+        cpuTime = nbt.getDouble("cpuTime");
+        if (nbt.hasKey("state")) {
+            state = nbt.getByteArray("state");
+        }
+    }
+
+    @Override
+    public void save(NBTTagCompound nbt) {
+        final NBTTagCompound nodeNbt = new NBTTagCompound();
+        node.save(nodeNbt);
+        nbt.setTag("node", nodeNbt);
+        nbt.setBoolean("running", running);
+        nbt.setDouble("cpuTime", cpuTime);
+        nbt.setByteArray("state", state.clone());
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Not used by the host.
+
+    @Override
+    public void onHostChanged() {
+    }
+
+    @Override
+    public Architecture architecture() {
+        return null;
+    }
+
+    @Override
+    public int maxComponents() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public double getCostPerTick() {
+        return 0;
+    }
+
+    @Override
+    public void setCostPerTick(double value) {
+    }
+
+    @Override
+    public String tmpAddress() {
+        return null;
+    }
+
+    @Override
+    public String lastError() {
+        return null;
+    }
+
+    @Override
+    public long worldTime() {
+        return 0;
+    }
+
+    @Override
+    public void beep(short frequency, short duration) {
+    }
+
+    @Override
+    public void beep(String pattern) {
+    }
+
+    @Override
+    public boolean crash(String message) {
+        return stop();
+    }
+
+    @Override
+    public Signal popSignal() {
+        return null;
+    }
+
+    @Override
+    public Map<String, Callback> methods(Object value) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Object[] invoke(String address, String method, Object[] args) {
+        return null;
+    }
+
+    @Override
+    public Object[] invoke(Value value, String method, Object[] args) {
+        return null;
+    }
+
+    @Override
+    public String[] users() {
+        return new String[0];
+    }
+
+    @Override
+    public void addUser(String name) {
+    }
+
+    @Override
+    public boolean removeUser(String name) {
+        return false;
+    }
+
+    @Override
+    public boolean canInteract(String player) {
+        return true;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return false;
+    }
+
+    @Override
+    public boolean pause(double seconds) {
+        return false;
+    }
+
+    @Override
+    public void consumeCallBudget(double callCost) {
+    }
+}
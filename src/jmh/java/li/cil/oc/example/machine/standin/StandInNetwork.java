@@ -0,0 +1,157 @@
+package li.cil.oc.example.machine.standin;
+
+import li.cil.oc.api.network.Message;
+import li.cil.oc.api.network.Network;
+import li.cil.oc.api.network.Node;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Stand-in for node networks. Joining nodes are announced to all nodes
+ * already in the network and vice versa, like OC does for visible nodes,
+ * so connect and merge costs scale the same way. Messages are only
+ * delivered when sent to an address.
+ */
+final class StandInNetwork implements Network {
+    final Set<StandInNode> nodes = new LinkedHashSet<StandInNode>();
+
+    static StandInNetwork create(StandInNode node) {
+        final StandInNetwork network = new StandInNetwork();
+        network.add(node);
+        return network;
+    }
+
+    List<StandInNode> snapshot() {
+        return new ArrayList<StandInNode>(nodes);
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @Override
+    public boolean connect(Node nodeA, Node nodeB) {
+        nodeA.connect(nodeB);
+        return true;
+    }
+
+    @Override
+    public boolean disconnect(Node nodeA, Node nodeB) {
+        nodeA.disconnect(nodeB);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Node node) {
+        node.remove();
+        return true;
+    }
+
+    @Override
+    public Node node(String address) {
+        for (StandInNode node : nodes) {
+            if (address.equals(node.address)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterable<Node> nodes() {
+        return new ArrayList<Node>(nodes);
+    }
+
+    @Override
+    public Iterable<Node> nodes(Node reference) {
+        return nodes();
+    }
+
+    @Override
+    public Iterable<Node> neighbors(Node node) {
+        return node.neighbors();
+    }
+
+    @Override
+    public void sendToAddress(Node source, String target, String name, Object... data) {
+        final Node node = node(target);
+        if (node != null) {
+            node.host().onMessage(new StandInMessage(source, name, data));
+        }
+    }
+
+    @Override
+    public void sendToNeighbors(Node source, String name, Object... data) {
+    }
+
+    @Override
+    public void sendToReachable(Node source, String name, Object... data) {
+    }
+
+    @Override
+    public void sendToVisible(Node source, String name, Object... data) {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    void add(StandInNode node) {
+        final List<StandInNode> existing = snapshot();
+        node.assignAddress();
+        node.network = this;
+        nodes.add(node);
+
+        node.host.onConnect(node);
+        for (StandInNode other : existing) {
+            other.host.onConnect(node);
+            node.host.onConnect(other);
+        }
+    }
+
+    void merge(StandInNetwork other) {
+        final List<StandInNode> existing = snapshot();
+        final List<StandInNode> moved = other.snapshot();
+        other.nodes.clear();
+        for (StandInNode node : moved) {
+            node.network = this;
+            nodes.add(node);
+        }
+        for (StandInNode node : moved) {
+            for (StandInNode old : existing) {
+                old.host.onConnect(node);
+                node.host.onConnect(old);
+            }
+        }
+    }
+
+    private static final class StandInMessage implements Message {
+        private final Node source;
+        private final String name;
+        private final Object[] data;
+
+        StandInMessage(Node source, String name, Object[] data) {
+            this.source = source;
+            this.name = name;
+            this.data = data;
+        }
+
+        @Override
+        public Node source() {
+            return source;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public Object[] data() {
+            return data;
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package li.cil.oc.example.machine.standin;
+
+import li.cil.oc.api.network.Environment;
+import li.cil.oc.api.network.Network;
+import li.cil.oc.api.network.Node;
+import li.cil.oc.api.network.Visibility;
+import net.minecraft.nbt.NBTTagCompound;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Stand-in for network nodes. Supports what the machine host relies on:
+ * addresses that are assigned when joining a network, connecting (which
+ * joins or merges networks and notifies hosts via onConnect), removal
+ * (which notifies hosts via onDisconnect), and messages sent to an address.
+ */
+final class StandInNode implements Node {
+    final Environment host;
+    final Visibility reachability;
+    final List<Node> neighbors = new ArrayList<Node>();
+    String address;
+    StandInNetwork network;
+
+    StandInNode(Environment host, Visibility reachability) {
+        this.host = host;
+        this.reachability = reachability;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @Override
+    public Environment host() {
+        return host;
+    }
+
+    @Override
+    public Visibility reachability() {
+        return reachability;
+    }
+
+    @Override
+    public String address() {
+        return address;
+    }
+
+    @Override
+    public Network network() {
+        return network;
+    }
+
+    @Override
+    public boolean canBeReachedFrom(Node other) {
+        return network != null && network.nodes.contains(other);
+    }
+
+    @Override
+    public boolean isNeighborOf(Node other) {
+        return neighbors.contains(other);
+    }
+
+    @Override
+    public Iterable<Node> reachableNodes() {
+        return network != null ? network.nodes() : Collections.<Node>emptyList();
+    }
+
+    @Override
+    public Iterable<Node> neighbors() {
+        return Collections.unmodifiableList(neighbors);
+    }
+
+    @Override
+    public void connect(Node other) {
+        final StandInNode that = (StandInNode) other;
+        if (that == this) return;
+        if (network == null) {
+            StandInNetwork.create(this);
+        }
+        if (!neighbors.contains(other)) {
+            neighbors.add(other);
+            that.neighbors.add(this);
+        }
+        if (that.network == null) {
+            network.add(that);
+        }
+        else if (that.network != network) {
+            network.merge(that.network);
+        }
+    }
+
+    @Override
+    public void disconnect(Node other) {
+        neighbors.remove(other);
+        ((StandInNode) other).neighbors.remove(this);
+    }
+
+    @Override
+    public void remove() {
+        if (network == null) return;
+        for (Node neighbor : neighbors) {
+            ((StandInNode) neighbor).neighbors.remove(this);
+        }
+        neighbors.clear();
+
+        final StandInNetwork oldNetwork = network;
+        network = null;
+        oldNetwork.nodes.remove(this);
+        host.onDisconnect(this);
+        for (StandInNode remaining : oldNetwork.snapshot()) {
+            remaining.host.onDisconnect(this);
+        }
+    }
+
+    @Override
+    public void sendToAddress(String target, String name, Object... data) {
+        if (network != null) {
+            network.sendToAddress(this, target, name, data);
+        }
+    }
+
+    @Override
+    public void sendToNeighbors(String name, Object... data) {
+    }
+
+    @Override
+    public void sendToReachable(String name, Object... data) {
+    }
+
+    @Override
+    public void sendToVisible(String name, Object... data) {
+    }
+
+    @Override
+    public void load(NBTTagCompound nbt) {
+        if (nbt.hasKey("address")) {
+            address = nbt.getString("address");
+        }
+    }
+
+    @Override
+    public void save(NBTTagCompound nbt) {
+        if (address != null) {
+            nbt.setString("address", address);
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    void assignAddress() {
+        if (address == null) {
+            address = UUID.randomUUID().toString();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package li.cil.oc.example.machine.standin;
+
+import cpw.mods.fml.common.gameevent.TickEvent;
+import cpw.mods.fml.common.registry.GameRegistry;
+import li.cil.oc.api.API;
+import li.cil.oc.api.detail.DriverAPI;
+import li.cil.oc.api.detail.ItemAPI;
+import li.cil.oc.api.detail.ItemInfo;
+import li.cil.oc.api.detail.MachineAPI;
+import li.cil.oc.api.detail.NetworkAPI;
+import li.cil.oc.api.machine.MachineHost;
+import li.cil.oc.api.network.Environment;
+import li.cil.oc.api.network.Node;
+import li.cil.oc.api.network.Visibility;
+import li.cil.oc.example.machine.BootQueue;
+import li.cil.oc.example.machine.HardwareProfile;
+import li.cil.oc.example.machine.MachineScheduler;
+import li.cil.oc.example.machine.Settings;
+import li.cil.oc.example.machine.TileEntityMachine;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.init.Items;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldProviderSurface;
+import net.minecraft.world.WorldServer;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-ins for the parts of OC and Minecraft the machine host talks to, so
+ * that tile entities can be created, connected, updated, saved and loaded
+ * without a running game.
+ * <p/>
+ * Call {@link #install} once before anything else; it replaces the OC API
+ * implementations with the stand-ins. OC items are represented by vanilla
+ * items, which only requires Minecraft's item registry to be bootstrapped.
+ */
+public final class StandIns {
+    // Size of the stand-in architecture state each machine saves, in bytes.
+    public static int stateSize = Integer.getInteger("standin.stateSize", 16 * 1024);
+
+    // Size of the data blob each stand-in component saves, in bytes.
+    public static int componentDataSize = Integer.getInteger("standin.componentDataSize", 256);
+
+    private static final Map<String, Item> items = new HashMap<String, Item>();
+    private static final Map<Item, String> names = new HashMap<Item, String>();
+    private static StandInWorld world;
+    private static boolean installed;
+
+    private StandIns() {
+    }
+
+    public static synchronized void install() {
+        if (installed) return;
+        installed = true;
+
+        Bootstrap.func_151354_b();
+        register("eeprom", Items.paper);
+        register("cpu1", Items.gold_ingot);
+        register("ram2", Items.iron_ingot);
+        register("graphicsCard1", Items.diamond);
+        register("hdd1", Items.emerald);
+
+        // Saving tile entities fails for unregistered classes.
+        GameRegistry.registerTileEntity(TileEntityMachine.class, "oc:example_machine");
+
+        API.items = Dispatcher.proxy(ItemAPI.class, new ItemAPIDispatcher());
+        API.driver = Dispatcher.proxy(DriverAPI.class, new DriverAPIDispatcher());
+        API.machine = Dispatcher.proxy(MachineAPI.class, new MachineAPIDispatcher());
+        API.network = Dispatcher.proxy(NetworkAPI.class, new NetworkAPIDispatcher());
+
+        // Only the first profile is used, and only its items are known.
+        HardwareProfile.load(new String[]{Settings.hardwareProfiles[0]});
+
+        world = allocateWorld();
+    }
+
+    /**
+     * Settings for measuring the host itself: every update runs in place,
+     * nothing is deferred, throttled or skipped.
+     */
+    public static void configureDirect() {
+        Settings.schedulerEnabled = false;
+        Settings.dormancyEnabled = false;
+        Settings.bootQueueEnabled = false;
+        Settings.asyncPersistence = false;
+        Settings.instrumentationEnabled = false;
+        Settings.hydrationPerTick = Integer.MAX_VALUE;
+    }
+
+    public static World world() {
+        return world;
+    }
+
+    /**
+     * Creates another world instance, for the same dimension as the one
+     * machines are placed in by default.
+     */
+    public static World newWorld() {
+        return allocateWorld();
+    }
+
+    /**
+     * Advances the time of the world machines are placed in by default.
+     */
+    public static void advanceTime(long ticks) {
+        world.time += ticks;
+    }
+
+    public static ItemStack stack(String name) {
+        return li.cil.oc.api.Items.get(name).createItemStack(1);
+    }
+
+    /**
+     * Creates a machine at the specified position, without connecting it.
+     */
+    public static TileEntityMachine newMachine(int x, int y, int z) {
+        final TileEntityMachine machine = new TileEntityMachine(HardwareProfile.get(0));
+        place(machine, x, y, z);
+        return machine;
+    }
+
+    public static void place(TileEntityMachine machine, int x, int y, int z) {
+        machine.setWorldObj(world);
+        machine.xCoord = x;
+        machine.yCoord = y;
+        machine.zCoord = z;
+    }
+
+    /**
+     * Fills all empty slots of a machine with RAM, so hosts with many slots
+     * are actually populated.
+     */
+    public static void fill(TileEntityMachine machine) {
+        for (int slot = 0; slot < machine.getSizeInventory(); ++slot) {
+            if (machine.peekStackInSlot(slot) == null) {
+                machine.setInventorySlotContents(slot, stack(slot == 0 ? "eeprom" : "ram2"));
+            }
+        }
+    }
+
+    /**
+     * Sends a signal to the machine with the specified node, like a component
+     * in its network would. The sender joins the network for that only.
+     */
+    public static void signal(Node machineNode, String name) {
+        final Node sender = new StandInEnvironment(null, false).node();
+        machineNode.connect(sender);
+        sender.sendToAddress(machineNode.address(), "computer.signal", name);
+        sender.remove();
+    }
+
+    /**
+     * Runs the start and end of a server tick for our tick handlers. Tile
+     * entity updates would happen in between.
+     */
+    public static void startTick() {
+        final TickEvent.ServerTickEvent event = new TickEvent.ServerTickEvent(TickEvent.Phase.START);
+        BootQueue.INSTANCE.onServerTick(event);
+        MachineScheduler.INSTANCE.onServerTick(event);
+    }
+
+    public static void endTick() {
+        MachineScheduler.INSTANCE.onServerTick(new TickEvent.ServerTickEvent(TickEvent.Phase.END));
+    }
+
+    /**
+     * Connects the machine as its first update would, and runs updates until
+     * all of its components have been created.
+     */
+    public static void connect(TileEntityMachine machine) {
+        startTick();
+        machine.updateEntity();
+        startTick();
+        machine.updateEntity();
+        endTick();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    static boolean isComponent(ItemStack stack) {
+        return stack != null && names.containsKey(stack.getItem());
+    }
+
+    static String nameOf(ItemStack stack) {
+        return names.get(stack.getItem());
+    }
+
+    private static void register(String name, Item item) {
+        items.put(name, item);
+        names.put(item, name);
+    }
+
+    private static StandInWorld allocateWorld() {
+        // We only need an instance to pass around, which is not remote and
+        // has a provider. Constructing a real world is a lot more involved.
+        try {
+            final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Unsafe unsafe = (Unsafe) field.get(null);
+            final StandInWorld world = (StandInWorld) unsafe.allocateInstance(StandInWorld.class);
+            world.provider = (WorldProviderSurface) unsafe.allocateInstance(WorldProviderSurface.class);
+            return world;
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Failed creating stand-in world.", e);
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // A world without chunks, with its own clock. Only ever allocated, never
+    // constructed, see allocateWorld.
+    private static final class StandInWorld extends WorldServer {
+        long time;
+
+        private StandInWorld() {
+            super(null, null, null, 0, null, null);
+        }
+
+        @Override
+        public long getTotalWorldTime() {
+            return time;
+        }
+
+        @Override
+        public void markTileEntityChunkModified(int x, int y, int z, TileEntity tileEntity) {
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private static final class ItemAPIDispatcher extends Dispatcher {
+        private final Map<String, ItemInfo> infos = new HashMap<String, ItemInfo>();
+
+        @Override
+        Object handle(String name, Object[] args, Class<?> returnType) {
+            if ("get".equals(name) && args.length == 1) {
+                final String itemName = args[0] instanceof ItemStack
+                        ? names.get(((ItemStack) args[0]).getItem())
+                        : (String) args[0];
+                if (itemName == null || !items.containsKey(itemName)) return null;
+                ItemInfo info = infos.get(itemName);
+                if (info == null) {
+                    info = proxy(ItemInfo.class, new ItemInfoDispatcher(itemName, items.get(itemName)));
+                    infos.put(itemName, info);
+                }
+                return info;
+            }
+            return defaultValue(returnType);
+        }
+    }
+
+    private static final class ItemInfoDispatcher extends Dispatcher {
+        private final String name;
+        private final Item item;
+
+        ItemInfoDispatcher(String name, Item item) {
+            this.name = name;
+            this.item = item;
+        }
+
+        @Override
+        Object handle(String method, Object[] args, Class<?> returnType) {
+            if ("name".equals(method)) return name;
+            if ("item".equals(method)) return item;
+            if ("createItemStack".equals(method)) return new ItemStack(item, (Integer) args[0], 0);
+            return defaultValue(returnType);
+        }
+    }
+
+    private static final class DriverAPIDispatcher extends Dispatcher {
+        @Override
+        Object handle(String name, Object[] args, Class<?> returnType) {
+            if ("driverFor".equals(name) && args.length >= 1 && args[0] instanceof ItemStack) {
+                return isComponent((ItemStack) args[0]) ? StandInDriver.INSTANCE : null;
+            }
+            return defaultValue(returnType);
+        }
+    }
+
+    private static final class MachineAPIDispatcher extends Dispatcher {
+        @Override
+        Object handle(String name, Object[] args, Class<?> returnType) {
+            if ("create".equals(name)) return new StandInMachine((MachineHost) args[0]);
+            return defaultValue(returnType);
+        }
+    }
+
+    private static final class NetworkAPIDispatcher extends Dispatcher {
+        @Override
+        Object handle(String name, Object[] args, Class<?> returnType) {
+            if ("joinOrCreateNetwork".equals(name)) {
+                if (args[0] instanceof Environment) {
+                    final Node node = ((Environment) args[0]).node();
+                    if (node != null && node.network() == null) {
+                        StandInNetwork.create((StandInNode) node);
+                    }
+                }
+                return null;
+            }
+            if ("joinNewNetwork".equals(name)) {
+                final Node node = (Node) args[0];
+                if (node.network() == null) {
+                    StandInNetwork.create((StandInNode) node);
+                }
+                return null;
+            }
+            if ("newNode".equals(name)) {
+                return proxy(returnType, new NodeBuilderDispatcher((Environment) args[0], (Visibility) args[1]));
+            }
+            return defaultValue(returnType);
+        }
+    }
+
+    private static final class NodeBuilderDispatcher extends Dispatcher {
+        private final Environment host;
+        private final Visibility reachability;
+
+        NodeBuilderDispatcher(Environment host, Visibility reachability) {
+            this.host = host;
+            this.reachability = reachability;
+        }
+
+        @Override
+        Object handle(String name, Object[] args, Class<?> returnType) {
+            if ("create".equals(name)) return new StandInNode(host, reachability);
+            // Component and connector options are irrelevant for us.
+            return returnType.isInstance(self) ? self : null;
+        }
+    }
+}
@@ -6,15 +6,27 @@ import net.minecraft.block.material.Material;
 import net.minecraft.creativetab.CreativeTabs;
 import net.minecraft.entity.item.EntityItem;
 import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.world.World;
 
+import java.util.List;
+
 public class BlockMachine extends Block {
+    // Whether this is the cluster variant, hosting several machines in one
+    // block, see TileEntityCluster.
+    private final boolean cluster;
+
     public BlockMachine() {
+        this(false);
+    }
+
+    public BlockMachine(boolean cluster) {
         super(Material.anvil);
+        this.cluster = cluster;
         setCreativeTab(CreativeTabs.tabAllSearch);
-        setBlockName("Machine");
+        setBlockName(cluster ? "MachineCluster" : "Machine");
     }
 
     @Override
@@ -24,20 +36,41 @@ public class BlockMachine extends Block {
 
     @Override
     public TileEntity createTileEntity(World world, int metadata) {
-        return new TileEntityMachine();
+        // Only called when placing the block; tile entities being loaded are
+        // created via their no-argument constructor.
+        if (cluster) {
+            return new TileEntityCluster(HardwareProfile.get(metadata));
+        }
+        return new TileEntityMachine(HardwareProfile.get(metadata));
+    }
+
+    // Each hardware profile is a variant of the block, by metadata.
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void getSubBlocks(Item item, CreativeTabs tab, List list) {
+        for (int i = 0; i < HardwareProfile.all().size(); ++i) {
+            list.add(new ItemStack(item, 1, i));
+        }
+    }
+
+    @Override
+    public int damageDropped(int metadata) {
+        return metadata;
     }
 
     @Override
     public boolean onBlockActivated(World world, int x, int y, int z, EntityPlayer player, int side, float hitX, float hitY, float hitZ) {
         if (player.isSneaking()) {
             if (Items.get(player.getHeldItem()) == Items.get("eeprom")) {
-                final TileEntity tileEntity = world.getTileEntity(x, y, z);
-                if (tileEntity instanceof TileEntityMachine) {
+                final TileEntityMachine machine = eepromTarget(world.getTileEntity(x, y, z));
+                if (machine != null) {
                     if (!world.isRemote) {
-                        final TileEntityMachine machine = (TileEntityMachine) tileEntity;
                         final ItemStack stack = player.inventory.decrStackSize(player.inventory.currentItem, 1);
                         if (stack != null && stack.stackSize > 0) {
-                            final ItemStack oldStack = machine.getStackInSlot(0);
+                            // Take the actual stack, not a copy: removing it from
+                            // the machine saves the EEPROM's state into it.
+                            final ItemStack oldStack = machine.peekStackInSlot(0);
                             machine.setInventorySlotContents(0, stack);
                             if (player.inventory.addItemStackToInventory(oldStack)) {
                                 player.inventory.markDirty();
@@ -59,7 +92,13 @@ public class BlockMachine extends Block {
             if (tileEntity instanceof TileEntityMachine) {
                 if (!world.isRemote) {
                     final TileEntityMachine machine = (TileEntityMachine) tileEntity;
-                    machine.machine().start();
+                    machine.start();
+                }
+                return true;
+            }
+            if (tileEntity instanceof TileEntityCluster) {
+                if (!world.isRemote) {
+                    ((TileEntityCluster) tileEntity).start();
                 }
                 return true;
             }
@@ -72,16 +111,43 @@ public class BlockMachine extends Block {
         if (!world.isRemote) {
             final TileEntity tileEntity = world.getTileEntity(x, y, z);
             if (tileEntity instanceof TileEntityMachine) {
-                final TileEntityMachine machine = (TileEntityMachine) tileEntity;
-                for (int i = 0; i < machine.getSizeInventory(); ++i) {
-                    final ItemStack stack = machine.getStackInSlot(i);
-                    if (stack != null) {
-                        final EntityItem entity = new EntityItem(world, x + 0.5, y + 0.5, z + 0.5, stack);
-                        world.spawnEntityInWorld(entity);
-                    }
+                dropContents(world, x, y, z, (TileEntityMachine) tileEntity);
+            }
+            else if (tileEntity instanceof TileEntityCluster) {
+                final TileEntityCluster cluster = (TileEntityCluster) tileEntity;
+                for (int i = 0; i < cluster.size(); ++i) {
+                    dropContents(world, x, y, z, cluster.machine(i));
                 }
             }
         }
         return super.removedByPlayer(world, player, x, y, z, willHarvest);
     }
+
+    // The machine an EEPROM used on the block goes into. For clusters that's
+    // the first machine without one, or the first machine if all have one.
+    private static TileEntityMachine eepromTarget(TileEntity tileEntity) {
+        if (tileEntity instanceof TileEntityMachine) {
+            return (TileEntityMachine) tileEntity;
+        }
+        if (tileEntity instanceof TileEntityCluster) {
+            final TileEntityCluster cluster = (TileEntityCluster) tileEntity;
+            for (int i = 0; i < cluster.size(); ++i) {
+                if (cluster.machine(i).peekStackInSlot(0) == null) {
+                    return cluster.machine(i);
+                }
+            }
+            return cluster.size() > 0 ? cluster.machine(0) : null;
+        }
+        return null;
+    }
+
+    private static void dropContents(World world, int x, int y, int z, TileEntityMachine machine) {
+        for (int i = 0; i < machine.getSizeInventory(); ++i) {
+            final ItemStack stack = machine.peekStackInSlot(i);
+            if (stack != null) {
+                final EntityItem entity = new EntityItem(world, x + 0.5, y + 0.5, z + 0.5, stack.copy());
+                world.spawnEntityInWorld(entity);
+            }
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Limits how many machines may start or resume per tick and per second.
+ * <p/>
+ * After a server restart, or when a large area gets loaded, all machines
+ * that were running would otherwise resume in the same tick, as would a
+ * bunch of machines started at the same time. Instead, such machines ask to
+ * be admitted here, and wait until there is capacity. Machines with a higher
+ * priority are admitted first; for resuming machines this is how long they
+ * have been running, players starting a machine go before anything else.
+ */
+public final class BootQueue {
+    public static final BootQueue INSTANCE = new BootQueue();
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+
+    // Number of admissions in each of the last 20 ticks, for the per-second
+    // limit. Indexed by tick modulo length.
+    private final int[] admitted = new int[20];
+
+    private long tick;
+    private long sequence;
+
+    // Metrics.
+    private int peakDepth;
+    private long totalAdmitted;
+    private long lastWait;
+
+    private BootQueue() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    void request(TileEntityMachine machine, double priority) {
+        if (machine.bootPending) return;
+        machine.bootPending = true;
+        queue.add(new Entry(machine, priority, sequence++, tick));
+        peakDepth = Math.max(peakDepth, queue.size());
+    }
+
+    void cancel(TileEntityMachine machine) {
+        if (!machine.bootPending) return;
+        machine.bootPending = false;
+        final Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().machine == machine) {
+                it.remove();
+                break;
+            }
+        }
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public int peakDepth() {
+        return peakDepth;
+    }
+
+    public int admittedLastSecond() {
+        int sum = 0;
+        for (int count : admitted) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    public long totalAdmitted() {
+        return totalAdmitted;
+    }
+
+    /**
+     * The number of ticks the most recently admitted machine had to wait.
+     */
+    public long lastWait() {
+        return lastWait;
+    }
+
+    public void clear() {
+        for (Entry entry : queue) {
+            entry.machine.bootPending = false;
+        }
+        queue.clear();
+        for (int i = 0; i < admitted.length; ++i) {
+            admitted[i] = 0;
+        }
+        peakDepth = 0;
+        totalAdmitted = 0;
+        lastWait = 0;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent e) {
+        // Admit at the start of the tick, so admitted machines get their
+        // update in this very tick.
+        if (e.phase != TickEvent.Phase.START) return;
+
+        ++tick;
+        final int index = (int) (tick % admitted.length);
+        admitted[index] = 0;
+        int lastSecond = admittedLastSecond();
+
+        while (!queue.isEmpty() && admitted[index] < Settings.bootsPerTick && lastSecond < Settings.bootsPerSecond) {
+            final Entry entry = queue.poll();
+            entry.machine.bootPending = false;
+            entry.machine.admitBoot();
+
+            ++admitted[index];
+            ++lastSecond;
+            ++totalAdmitted;
+            lastWait = tick - entry.tick;
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private static final class Entry implements Comparable<Entry> {
+        final TileEntityMachine machine;
+        final double priority;
+        final long sequence;
+        final long tick;
+
+        Entry(TileEntityMachine machine, double priority, long sequence, long tick) {
+            this.machine = machine;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.tick = tick;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            // Higher priority first, first come first served otherwise.
+            final int byPriority = Double.compare(other.priority, priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
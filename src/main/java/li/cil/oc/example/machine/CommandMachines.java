@@ -0,0 +1,116 @@
+package li.cil.oc.example.machine;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.ChatComponentText;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Server command for inspecting machines, i.e. <tt>/machines top [count]</tt>
+ * to list the most expensive loaded machines, <tt>/machines hibernation</tt>
+ * for how many machines are hibernating and what that saves, and
+ * <tt>/machines trace start|stop|dump [seconds]</tt> to record what machines
+ * spend their time on and write it to a trace file, see {@link MachineTracer}.
+ */
+public class CommandMachines extends CommandBase {
+    @Override
+    public String getCommandName() {
+        return "machines";
+    }
+
+    @Override
+    public String getCommandUsage(ICommandSender sender) {
+        return "/machines top [count] | hibernation | trace <start|stop|dump [seconds]>";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public List addTabCompletionOptions(ICommandSender sender, String[] args) {
+        if (args.length == 1) {
+            return getListOfStringsMatchingLastWord(args, "top", "hibernation", "trace");
+        }
+        if (args.length == 2 && "trace".equals(args[0])) {
+            return getListOfStringsMatchingLastWord(args, "start", "stop", "dump");
+        }
+        return null;
+    }
+
+    @Override
+    public void processCommand(ICommandSender sender, String[] args) {
+        if (args.length >= 1 && "top".equals(args[0])) {
+            top(sender, args.length >= 2 ? parseIntBounded(sender, args[1], 1, 100) : 10);
+        }
+        else if (args.length >= 1 && "hibernation".equals(args[0])) {
+            hibernation(sender);
+        }
+        else if (args.length >= 2 && "trace".equals(args[0])) {
+            trace(sender, args);
+        }
+        else {
+            throw new WrongUsageException(getCommandUsage(sender));
+        }
+    }
+
+    private void top(ICommandSender sender, int count) {
+        if (!Settings.instrumentationEnabled) {
+            sender.addChatMessage(new ChatComponentText("Machine instrumentation is disabled, enable it in the config."));
+            return;
+        }
+
+        final List<TileEntityMachine> top = MachineMetrics.INSTANCE.top(count);
+        sender.addChatMessage(new ChatComponentText(String.format("%d machines loaded, %d dormant. Most expensive in the last minute:",
+                MachineScheduler.INSTANCE.machines().size(), MachineScheduler.INSTANCE.dormantCount())));
+        for (int i = 0; i < top.size(); ++i) {
+            sender.addChatMessage(new ChatComponentText((i + 1) + ". " + MachineMetrics.describe(top.get(i))));
+        }
+    }
+
+    private void hibernation(ICommandSender sender) {
+        if (!Settings.hibernationEnabled) {
+            sender.addChatMessage(new ChatComponentText("Machine hibernation is disabled, enable it in the config."));
+            return;
+        }
+
+        final Hibernation hibernation = Hibernation.INSTANCE;
+        sender.addChatMessage(new ChatComponentText(String.format("%d machines hibernating, reclaiming about %.1f MB. %d hibernations, %d resumes since start.",
+                hibernation.hibernatingCount(), hibernation.reclaimedBytes() / (1024.0 * 1024.0),
+                hibernation.hibernationCount(), hibernation.resumeCount())));
+    }
+
+    private void trace(ICommandSender sender, String[] args) {
+        final MachineTracer tracer = MachineTracer.INSTANCE;
+        if ("start".equals(args[1])) {
+            tracer.start(Settings.traceEvents);
+            sender.addChatMessage(new ChatComponentText(String.format("Tracing machines, keeping the last %d events.", tracer.capacity())));
+        }
+        else if ("stop".equals(args[1])) {
+            tracer.stop();
+            sender.addChatMessage(new ChatComponentText("Stopped tracing machines."));
+        }
+        else if ("dump".equals(args[1])) {
+            if (!tracer.isActive()) {
+                sender.addChatMessage(new ChatComponentText("Not tracing, start with /machines trace start."));
+                return;
+            }
+            final int seconds = args.length >= 3 ? parseIntBounded(sender, args[2], 1, 3600) : 10;
+            final String name = "machines-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+            final File file = MinecraftServer.getServer().getFile("example_machine/traces/" + name);
+            final int count = tracer.dump(seconds, file);
+            sender.addChatMessage(new ChatComponentText(String.format("Writing %d events of the last %d seconds to %s.", count, seconds, file)));
+        }
+        else {
+            throw new WrongUsageException(getCommandUsage(sender));
+        }
+    }
+}
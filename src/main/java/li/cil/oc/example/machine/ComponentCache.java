@@ -0,0 +1,325 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import li.cil.oc.api.driver.Item;
+import li.cil.oc.api.network.ManagedEnvironment;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagString;
+import net.minecraft.world.World;
+import net.minecraftforge.common.util.Constants;
+import net.minecraftforge.event.world.WorldEvent;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the component environments of recently unloaded machines around, so
+ * that they can be reattached instead of being created and loaded anew when
+ * the chunk is loaded again shortly after, which happens a lot for chunks at
+ * the edge of where players move around.
+ * <p/>
+ * Entries are keyed by world and position. When parking a machine's
+ * components we take a snapshot of what saving each of them would produce
+ * right now. When the machine at that position is loaded again, a component
+ * is only reattached if the item stack in its slot is exactly that snapshot,
+ * i.e. if loading the stack would have produced the same state. Anything
+ * else (the chunk was saved before the components cleaned up on unload, the
+ * world was edited or restored, the machine was replaced, the world itself
+ * was unloaded) falls back to creating the component normally.
+ * <p/>
+ * The cache is bounded by entry count, age and an estimate of the memory the
+ * entries hold; the least recently parked entries are evicted first. Evicted
+ * components are simply dropped: they have already been disconnected, and
+ * their state is in the chunk data.
+ */
+public final class ComponentCache {
+    public static final ComponentCache INSTANCE = new ComponentCache();
+
+    // Rough per-component overhead for the memory estimate, on top of the
+    // size of its saved state.
+    private static final long COMPONENT_OVERHEAD = 1024;
+
+    // In parking order, which is also the order of last use, since entries
+    // are removed when taken.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>();
+    private long estimatedBytes;
+    private int tickCounter;
+
+    // Statistics, for the curious.
+    private long reattached;
+    private long rejected;
+    private long evicted;
+
+    private ComponentCache() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Parks the components of a machine being unloaded. The components must
+     * already have been disconnected. Slots without a component are ignored.
+     */
+    public void park(TileEntityMachine host, ItemStack[] inventory, ManagedEnvironment[] components, Item[] drivers, TileEntityMachine[] hosts) {
+        final World world = host.getWorldObj();
+        if (world == null) return;
+
+        final Entry entry = new Entry(world, components.length);
+        for (int slot = 0; slot < components.length; ++slot) {
+            final ManagedEnvironment environment = components[slot];
+            final Item driver = drivers[slot];
+            final ItemStack stack = inventory[slot];
+            if (environment == null || driver == null || stack == null) continue;
+
+            // Snapshot what the stack would look like if it were saved now,
+            // without touching the actual stack.
+            final ItemStack copy = stack.copy();
+            environment.save(driver.dataTag(copy));
+            final NBTTagCompound snapshot = new NBTTagCompound();
+            copy.writeToNBT(snapshot);
+
+            entry.components[slot] = environment;
+            entry.drivers[slot] = driver;
+            entry.hosts[slot] = hosts[slot] != null ? hosts[slot] : host;
+            entry.snapshots[slot] = snapshot;
+            entry.bytes += COMPONENT_OVERHEAD + estimateSize(snapshot);
+        }
+        if (entry.bytes == 0) return;
+
+        final Key key = new Key(world.provider.dimensionId, host.xCoord, host.yCoord, host.zCoord, host.clusterIndex);
+        remove(key);
+        entries.put(key, entry);
+        estimatedBytes += entry.bytes;
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Takes the parked components for a machine being loaded at the
+     * specified position, if any. Returns null if there are none or they
+     * belonged to a different world instance.
+     */
+    public Entry take(TileEntityMachine host) {
+        final World world = host.getWorldObj();
+        if (world == null || entries.isEmpty()) return null;
+
+        final Entry entry = remove(new Key(world.provider.dimensionId, host.xCoord, host.yCoord, host.zCoord, host.clusterIndex));
+        if (entry == null) return null;
+        if (entry.world != world) {
+            rejected += entry.count();
+            return null;
+        }
+        return entry;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long reattachedCount() {
+        return reattached;
+    }
+
+    public long rejectedCount() {
+        return rejected;
+    }
+
+    public long evictedCount() {
+        return evicted;
+    }
+
+    public void clear() {
+        entries.clear();
+        estimatedBytes = 0;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent e) {
+        // Time-based eviction only needs to be roughly on time.
+        if (e.phase == TickEvent.Phase.END && ++tickCounter >= 20) {
+            tickCounter = 0;
+            if (!entries.isEmpty()) {
+                evict(System.currentTimeMillis());
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload e) {
+        // Don't keep unloaded worlds alive via our entries' hosts.
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.world == e.world) {
+                it.remove();
+                estimatedBytes -= entry.bytes;
+                evicted += entry.count();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private Entry remove(Key key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            estimatedBytes -= entry.bytes;
+        }
+        return entry;
+    }
+
+    private void evict(long now) {
+        final long maxAge = Settings.componentCacheSeconds * 1000L;
+        final long maxBytes = Settings.componentCacheMemory * 1024L * 1024L;
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entries.size() <= Settings.componentCacheSize &&
+                    estimatedBytes <= maxBytes &&
+                    now - entry.parked <= maxAge) {
+                // Iteration is in parking order, so everything after this
+                // is younger.
+                break;
+            }
+            it.remove();
+            estimatedBytes -= entry.bytes;
+            evicted += entry.count();
+        }
+    }
+
+    // Rough estimate of how much memory the state described by a tag takes.
+    static long estimateSize(NBTBase tag) {
+        switch (tag.getId()) {
+            case Constants.NBT.TAG_BYTE_ARRAY:
+                return 16 + ((NBTTagByteArray) tag).func_150292_c().length;
+            case Constants.NBT.TAG_INT_ARRAY:
+                return 16 + 4 * ((NBTTagIntArray) tag).func_150302_c().length;
+            case Constants.NBT.TAG_STRING:
+                return 40 + 2 * ((NBTTagString) tag).func_150285_a_().length();
+            case Constants.NBT.TAG_LIST: {
+                final NBTTagList list = (NBTTagList) tag;
+                if (list.func_150303_d() != Constants.NBT.TAG_COMPOUND) {
+                    return 16 + 16 * list.tagCount();
+                }
+                long size = 16;
+                for (int i = 0; i < list.tagCount(); ++i) {
+                    size += estimateSize(list.getCompoundTagAt(i));
+                }
+                return size;
+            }
+            case Constants.NBT.TAG_COMPOUND: {
+                final NBTTagCompound compound = (NBTTagCompound) tag;
+                long size = 48;
+                for (Object key : compound.func_150296_c()) {
+                    size += 32 + estimateSize(compound.getTag((String) key));
+                }
+                return size;
+            }
+            default:
+                return 16;
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Machines in a cluster share its position, so they're told apart by
+    // their index in it, which is -1 for machines of their own.
+    private static final class Key {
+        final int dimension, x, y, z, index;
+
+        Key(int dimension, int x, int y, int z, int index) {
+            this.dimension = dimension;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return dimension == other.dimension && x == other.x && y == other.y && z == other.z && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((dimension * 31 + x) * 31 + y) * 31 + z) * 31 + index;
+        }
+    }
+
+    /**
+     * The parked components of a single machine.
+     */
+    public static final class Entry {
+        // The world the components were parked in. For each component we
+        // also keep the tile entity it was created for, which is what the
+        // component considers its host; it forwards what components ask of
+        // it to the tile entity adopting them.
+        final World world;
+        final ManagedEnvironment[] components;
+        final Item[] drivers;
+        final TileEntityMachine[] hosts;
+        final NBTTagCompound[] snapshots;
+        final long parked = System.currentTimeMillis();
+        long bytes;
+
+        Entry(World world, int slots) {
+            this.world = world;
+            this.components = new ManagedEnvironment[slots];
+            this.drivers = new Item[slots];
+            this.hosts = new TileEntityMachine[slots];
+            this.snapshots = new NBTTagCompound[slots];
+        }
+
+        /**
+         * Returns the parked component for a slot if it is still valid for
+         * the specified stack, i.e. the stack is exactly what saving the
+         * component would have produced. Each component can be taken once.
+         */
+        ManagedEnvironment take(int slot, ItemStack stack) {
+            if (slot >= components.length || components[slot] == null) return null;
+            final ManagedEnvironment environment = components[slot];
+            final NBTTagCompound snapshot = snapshots[slot];
+            components[slot] = null;
+            snapshots[slot] = null;
+
+            final NBTTagCompound current = new NBTTagCompound();
+            if (stack != null) {
+                stack.writeToNBT(current);
+            }
+            if (!current.equals(snapshot)) {
+                ++INSTANCE.rejected;
+                return null;
+            }
+            ++INSTANCE.reattached;
+            return environment;
+        }
+
+        Item driver(int slot) {
+            return drivers[slot];
+        }
+
+        TileEntityMachine host(int slot) {
+            return hosts[slot];
+        }
+
+        int count() {
+            int count = 0;
+            for (ManagedEnvironment environment : components) {
+                if (environment != null) ++count;
+            }
+            return count;
+        }
+    }
+}
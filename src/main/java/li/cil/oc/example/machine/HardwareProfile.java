@@ -0,0 +1,116 @@
+package li.cil.oc.example.machine;
+
+import li.cil.oc.api.Items;
+import li.cil.oc.api.detail.ItemInfo;
+import net.minecraft.item.ItemStack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A named set of components newly placed machines are equipped with, i.e. a
+ * machine tier. Each profile is one variant of the machine block, by index.
+ * <p/>
+ * Profiles are defined in the config and resolved into template stacks once,
+ * in pre-init. Machines copy the stacks of their profile when they are first
+ * placed; machines being loaded get theirs from their saved data, so they
+ * never look at their profile (see the TileEntityMachine constructors).
+ */
+public final class HardwareProfile {
+    // Profiles are block variants, so there can be at most as many as there
+    // are block metadata values.
+    public static final int MAX_PROFILES = 16;
+
+    private static List<HardwareProfile> profiles = Collections.emptyList();
+
+    private final String name;
+
+    // Template stacks, by slot. Never handed out, only copies of them.
+    private final ItemStack[] stacks;
+
+    private HardwareProfile(String name, ItemStack[] stacks) {
+        this.name = name;
+        this.stacks = stacks;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Resolves the profile definitions from the config, in the format
+     * <tt>name=item,item,...</tt>, where the items are the OpenComputers item
+     * names for the slots, in order, and empty for empty slots.
+     */
+    public static void load(String[] definitions) {
+        final List<HardwareProfile> result = new ArrayList<HardwareProfile>();
+        for (String definition : definitions) {
+            if (result.size() >= MAX_PROFILES) {
+                ModExampleMachine.log.warn("Ignoring hardware profiles beyond the first {}.", MAX_PROFILES);
+                break;
+            }
+
+            final int split = definition.indexOf('=');
+            if (split <= 0) {
+                ModExampleMachine.log.warn("Ignoring malformed hardware profile '{}'.", definition);
+                continue;
+            }
+
+            final String name = definition.substring(0, split).trim();
+            final String[] names = definition.substring(split + 1).split(",", -1);
+            final ItemStack[] stacks = new ItemStack[names.length];
+            for (int slot = 0; slot < names.length; ++slot) {
+                final String itemName = names[slot].trim();
+                if (itemName.isEmpty()) continue;
+
+                final ItemInfo info = Items.get(itemName);
+                if (info == null) {
+                    ModExampleMachine.log.warn("Unknown item '{}' in hardware profile '{}', leaving slot {} empty.", itemName, name, slot);
+                    continue;
+                }
+                stacks[slot] = info.createItemStack(1);
+            }
+            result.add(new HardwareProfile(name, stacks));
+        }
+        if (result.isEmpty()) {
+            // Machines without anything in them, rather than no machines.
+            result.add(new HardwareProfile("empty", new ItemStack[0]));
+        }
+        profiles = Collections.unmodifiableList(result);
+    }
+
+    public static List<HardwareProfile> all() {
+        return profiles;
+    }
+
+    /**
+     * The profile for the specified block metadata, falling back to the first
+     * one for variants that are no longer configured.
+     */
+    public static HardwareProfile get(int index) {
+        return index >= 0 && index < profiles.size() ? profiles.get(index) : profiles.get(0);
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The number of slots this profile defines, which may be less than the
+     * number of slots a machine has.
+     */
+    public int slotCount() {
+        return stacks.length;
+    }
+
+    /**
+     * Copies the profile's stacks into the specified inventory, which must
+     * have at least {@link #slotCount()} slots.
+     */
+    public void copyInto(ItemStack[] inventory) {
+        for (int slot = 0; slot < stacks.length; ++slot) {
+            inventory[slot] = stacks[slot] != null ? stacks[slot].copy() : null;
+        }
+    }
+}
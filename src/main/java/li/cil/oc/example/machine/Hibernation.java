@@ -0,0 +1,77 @@
+package li.cil.oc.example.machine;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * Bookkeeping for hibernating machines, see TileEntityMachine.hibernate.
+ * <p/>
+ * A hibernating machine has saved its state and released its architecture
+ * and components, leaving only a stub node in the network. How much memory
+ * that frees cannot be measured per machine, so we only count what we know
+ * left the heap: the machine's saved state, which grows with the memory its
+ * programs use, if it went to the state store. If it is kept in memory, it
+ * takes up about what the architecture did, so we count nothing. Component
+ * state is saved into the stacks in the inventory, which stay in memory, so
+ * that never counts.
+ */
+public final class Hibernation {
+    public static final Hibernation INSTANCE = new Hibernation();
+
+    private int hibernating;
+    private long reclaimedBytes;
+
+    // Statistics, for the curious.
+    private long hibernations;
+    private long resumes;
+
+    private Hibernation() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Estimates the memory released by hibernating a machine with the
+     * specified saved state, i.e. its size if it is not kept in memory.
+     */
+    static long estimate(NBTTagCompound state, boolean stateKept) {
+        return stateKept ? 0 : ComponentCache.estimateSize(state);
+    }
+
+    void onHibernate(long bytes) {
+        ++hibernating;
+        ++hibernations;
+        reclaimedBytes += bytes;
+    }
+
+    void onResume(long bytes) {
+        ++resumes;
+        onGone(bytes);
+    }
+
+    // Hibernating machine unloaded or removed without resuming.
+    void onGone(long bytes) {
+        --hibernating;
+        reclaimedBytes -= bytes;
+    }
+
+    public int hibernatingCount() {
+        return hibernating;
+    }
+
+    public long reclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    public long hibernationCount() {
+        return hibernations;
+    }
+
+    public long resumeCount() {
+        return resumes;
+    }
+
+    public void clear() {
+        hibernating = 0;
+        reclaimedBytes = 0;
+    }
+}
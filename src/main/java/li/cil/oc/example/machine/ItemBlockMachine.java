@@ -0,0 +1,28 @@
+package li.cil.oc.example.machine;
+
+import net.minecraft.block.Block;
+import net.minecraft.item.ItemBlock;
+import net.minecraft.item.ItemStack;
+
+/**
+ * Item for the machine block, with one variant per hardware profile.
+ */
+public class ItemBlockMachine extends ItemBlock {
+    public ItemBlockMachine(Block block) {
+        super(block);
+        setHasSubtypes(true);
+    }
+
+    @Override
+    public int getMetadata(int damage) {
+        // Place the variant of the block matching the item's.
+        return damage;
+    }
+
+    @Override
+    public String getItemStackDisplayName(ItemStack stack) {
+        final String name = super.getItemStackDisplayName(stack);
+        if (HardwareProfile.all().size() < 2) return name;
+        return name + " (" + HardwareProfile.get(stack.getItemDamage()).name() + ")";
+    }
+}
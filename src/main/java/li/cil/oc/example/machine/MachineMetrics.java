@@ -0,0 +1,216 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Aggregated timings and counters of all machines, exported via JMX.
+ * <p/>
+ * Machines record their own timings in their {@link MachineStats}, which
+ * also feed the global histograms here. Everything in here is only updated
+ * while instrumentation is enabled in the config.
+ * <p/>
+ * The list of most expensive machines is computed once per second on the
+ * server thread, since the set of loaded machines may not be iterated from
+ * the thread serving JMX requests.
+ */
+public final class MachineMetrics implements MachineMetricsMXBean {
+    public static final MachineMetrics INSTANCE = new MachineMetrics();
+
+    public static final String OBJECT_NAME = "li.cil.oc.example.machine:type=MachineMetrics";
+
+    private static final int TOP_COUNT = 10;
+
+    final RollingHistogram updateTime = new RollingHistogram();
+    final RollingHistogram componentTime = new RollingHistogram();
+    final RollingHistogram saveTime = new RollingHistogram();
+    final RollingHistogram loadTime = new RollingHistogram();
+    long connects;
+    long disconnects;
+
+    private volatile String[] topMachines = new String[0];
+    private int ticks;
+
+    private MachineMetrics() {
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e) {
+            ModExampleMachine.log.warn("Failed registering machine metrics MBean.", e);
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * The loaded machines with the highest total time spent on them in the
+     * last minute, most expensive first. Must be called on the server thread.
+     */
+    public List<TileEntityMachine> top(int count) {
+        final List<TileEntityMachine> machines = new ArrayList<TileEntityMachine>();
+        for (TileEntityMachine machine : MachineScheduler.INSTANCE.machines()) {
+            if (machine.stats() != null) {
+                machines.add(machine);
+            }
+        }
+        Collections.sort(machines, new Comparator<TileEntityMachine>() {
+            @Override
+            public int compare(TileEntityMachine a, TileEntityMachine b) {
+                return Long.compare(b.stats().total(), a.stats().total());
+            }
+        });
+        return machines.subList(0, Math.min(count, machines.size()));
+    }
+
+    public static String describe(TileEntityMachine machine) {
+        final MachineStats stats = machine.stats();
+        return String.format("(%.1f, %.1f, %.1f) in dim %d: %.1f ms total, update %.1f us avg / %.1f us max, components %.1f ms, %d connects, %d disconnects",
+                machine.xPosition(), machine.yPosition(), machine.zPosition(),
+                machine.world().provider.dimensionId,
+                stats.total() / 1e6,
+                stats.updateTime.mean() / 1e3, stats.updateTime.max() / 1e3,
+                stats.componentTotal() / 1e6,
+                stats.connects, stats.disconnects);
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent e) {
+        if (e.phase != TickEvent.Phase.END || !Settings.instrumentationEnabled) return;
+        if (++ticks % 20 != 0) return;
+
+        final List<TileEntityMachine> top = top(TOP_COUNT);
+        final String[] result = new String[top.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = describe(top.get(i));
+        }
+        topMachines = result;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @Override
+    public boolean isEnabled() {
+        return Settings.instrumentationEnabled;
+    }
+
+    @Override
+    public int getMachineCount() {
+        return MachineScheduler.INSTANCE.machines().size();
+    }
+
+    @Override
+    public int getDormantCount() {
+        return MachineScheduler.INSTANCE.dormantCount();
+    }
+
+    @Override
+    public int getHibernatingCount() {
+        return Hibernation.INSTANCE.hibernatingCount();
+    }
+
+    @Override
+    public long getHibernationReclaimedBytes() {
+        return Hibernation.INSTANCE.reclaimedBytes();
+    }
+
+    @Override
+    public int getSchedulerQueueSize() {
+        return MachineScheduler.INSTANCE.queueSize();
+    }
+
+    @Override
+    public int getSchedulerDeferred() {
+        return MachineScheduler.INSTANCE.lastDeferred();
+    }
+
+    @Override
+    public int getBootQueueDepth() {
+        return BootQueue.INSTANCE.queueDepth();
+    }
+
+    @Override
+    public long getComponentConnects() {
+        return connects;
+    }
+
+    @Override
+    public long getComponentDisconnects() {
+        return disconnects;
+    }
+
+    @Override
+    public double getUpdateTimeMean() {
+        return updateTime.mean() / 1e3;
+    }
+
+    @Override
+    public double getUpdateTimeP99() {
+        return updateTime.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getUpdateTimeMax() {
+        return updateTime.max() / 1e3;
+    }
+
+    @Override
+    public double getComponentTimeMean() {
+        return componentTime.mean() / 1e3;
+    }
+
+    @Override
+    public double getComponentTimeP99() {
+        return componentTime.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getComponentTimeMax() {
+        return componentTime.max() / 1e3;
+    }
+
+    @Override
+    public double getSaveTimeMean() {
+        return saveTime.mean() / 1e3;
+    }
+
+    @Override
+    public double getSaveTimeP99() {
+        return saveTime.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getSaveTimeMax() {
+        return saveTime.max() / 1e3;
+    }
+
+    @Override
+    public double getLoadTimeMean() {
+        return loadTime.mean() / 1e3;
+    }
+
+    @Override
+    public double getLoadTimeP99() {
+        return loadTime.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getLoadTimeMax() {
+        return loadTime.max() / 1e3;
+    }
+
+    @Override
+    public String[] getTopMachines() {
+        return topMachines;
+    }
+}
@@ -0,0 +1,53 @@
+package li.cil.oc.example.machine;
+
+/**
+ * Management interface of {@link MachineMetrics}. All times are in
+ * microseconds, over the last minute.
+ */
+public interface MachineMetricsMXBean {
+    boolean isEnabled();
+
+    int getMachineCount();
+
+    int getDormantCount();
+
+    int getHibernatingCount();
+
+    long getHibernationReclaimedBytes();
+
+    int getSchedulerQueueSize();
+
+    int getSchedulerDeferred();
+
+    int getBootQueueDepth();
+
+    long getComponentConnects();
+
+    long getComponentDisconnects();
+
+    double getUpdateTimeMean();
+
+    double getUpdateTimeP99();
+
+    double getUpdateTimeMax();
+
+    double getComponentTimeMean();
+
+    double getComponentTimeP99();
+
+    double getComponentTimeMax();
+
+    double getSaveTimeMean();
+
+    double getSaveTimeP99();
+
+    double getSaveTimeMax();
+
+    double getLoadTimeMean();
+
+    double getLoadTimeP99();
+
+    double getLoadTimeMax();
+
+    String[] getTopMachines();
+}
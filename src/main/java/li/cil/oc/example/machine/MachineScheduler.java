@@ -0,0 +1,142 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Owns all machines loaded on the server and runs their updates.
+ * <p/>
+ * When enabled, tile entities no longer update their machine themselves, but
+ * only enqueue themselves here. At the end of each server tick all queued
+ * machines are updated in one pass, in the order they were queued, until the
+ * configured time budget is used up. Machines that did not fit stay at the
+ * head of the queue, so they are the first to be updated in the next tick,
+ * which keeps things fair (round-robin) even when the budget is exceeded
+ * constantly. Afterwards, the parallel component update phase is run, if
+ * enabled, see {@link ParallelUpdater}.
+ */
+public final class MachineScheduler {
+    public static final MachineScheduler INSTANCE = new MachineScheduler();
+
+    // All machines currently connected to a network, i.e. loaded.
+    private final Set<TileEntityMachine> machines = new LinkedHashSet<TileEntityMachine>();
+
+    // Machines waiting for their update. Deferred machines remain at the head
+    // of the queue, machines enqueued in the current tick go to the tail.
+    private final ArrayDeque<TileEntityMachine> queue = new ArrayDeque<TileEntityMachine>();
+
+    // Number of machine updates that were deferred in the last tick, for
+    // anyone curious about whether the budget is sufficient.
+    private int lastDeferred;
+
+    // Number of registered machines currently dormant, i.e. stopped and taken
+    // off the per-tick update path (see TileEntityMachine.updateDormancy).
+    private int dormant;
+
+    // Number of components that may still be created in the current tick,
+    // see TileEntityMachine.hydrateComponents.
+    private int hydrationBudget;
+
+    private MachineScheduler() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    public void register(TileEntityMachine machine) {
+        machines.add(machine);
+    }
+
+    public void unregister(TileEntityMachine machine) {
+        // No need to remove it from the queue here, it will be dropped when
+        // it comes up, since it is no longer registered.
+        machines.remove(machine);
+    }
+
+    void onDormancyChanged(boolean isDormant) {
+        dormant += isDormant ? 1 : -1;
+    }
+
+    boolean tryHydrate() {
+        if (hydrationBudget > 0) {
+            --hydrationBudget;
+            return true;
+        }
+        return false;
+    }
+
+    public void enqueue(TileEntityMachine machine) {
+        // The flag avoids duplicates for machines that were deferred and
+        // are therefore still queued when their tile entity updates again.
+        if (!machine.scheduled) {
+            machine.scheduled = true;
+            queue.add(machine);
+        }
+    }
+
+    public Set<TileEntityMachine> machines() {
+        return Collections.unmodifiableSet(machines);
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    public int lastDeferred() {
+        return lastDeferred;
+    }
+
+    public int dormantCount() {
+        return dormant;
+    }
+
+    public void clear() {
+        for (TileEntityMachine machine : queue) {
+            machine.scheduled = false;
+        }
+        queue.clear();
+        machines.clear();
+        lastDeferred = 0;
+        dormant = 0;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent e) {
+        if (e.phase == TickEvent.Phase.START) {
+            hydrationBudget = Settings.hydrationPerTick;
+            return;
+        }
+
+        // Run at the end of the tick, after all tile entities had their
+        // chance to enqueue themselves.
+        final long deadline = System.nanoTime() + (long) (Settings.schedulerBudget * 1000000);
+        int remaining = queue.size();
+        boolean first = true;
+        while (remaining > 0) {
+            // Always update at least one machine per tick, so that a single
+            // machine exceeding the budget on its own cannot stall all others.
+            if (!first && System.nanoTime() > deadline) {
+                break;
+            }
+            first = false;
+            --remaining;
+
+            final TileEntityMachine machine = queue.poll();
+            machine.scheduled = false;
+            if (machines.contains(machine) && !machine.isInvalid()) {
+                machine.updateMachine();
+            }
+        }
+        lastDeferred = remaining;
+
+        // Thread-safe components collected by the machines updated this
+        // tick, whether by us or by their tile entities.
+        ParallelUpdater.INSTANCE.run();
+    }
+}
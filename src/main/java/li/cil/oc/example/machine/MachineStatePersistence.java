@@ -0,0 +1,276 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.event.world.WorldEvent;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes machine state to files outside of the chunk data, off the server
+ * thread.
+ * <p/>
+ * The machine state itself has to be saved on the server thread, since the
+ * architecture may not be touched while the machine is running. What we can
+ * move to background threads is compressing the result and writing it to
+ * disk, which otherwise happens on the single thread shared by all chunk
+ * saves. Snapshots handed to {@link #save} must not be modified afterwards,
+ * which the tile entity guarantees by never reusing a saved tag for anything
+ * else.
+ * <p/>
+ * A snapshot stays in the pending map until it has been written, so loading
+ * a machine whose state is still being written (e.g. a chunk that was
+ * unloaded and immediately loaded again) returns the pending snapshot, and
+ * nothing is lost when the tile entity goes away before the write completes.
+ * All pending writes are flushed whenever a world saves and when the server
+ * stops.
+ * <p/>
+ * Files of machines that were removed are deleted when flushing, unless they
+ * were loaded or saved again since, like by a block mover putting the machine
+ * back down elsewhere. A write of such a file that is still in progress is
+ * waited for.
+ */
+public final class MachineStatePersistence {
+    public static final MachineStatePersistence INSTANCE = new MachineStatePersistence();
+
+    // Latest snapshot per file that has not been written yet.
+    private final Map<File, NBTTagCompound> pending = new ConcurrentHashMap<File, NBTTagCompound>();
+
+    // Files of removed machines, to delete with the next flush. Only used by
+    // the server thread.
+    private final Set<File> discarded = new HashSet<File>();
+
+    // Writes to the same file must not overlap, or an older snapshot may
+    // end up replacing a newer one. Files are mapped to one of these locks
+    // by their hash.
+    private final Object[] locks = new Object[64];
+
+    private ThreadPoolExecutor executor;
+
+    // The directory paths are relative to. The current world's save directory
+    // unless set, which tests do.
+    File root;
+
+    private MachineStatePersistence() {
+        for (int i = 0; i < locks.length; ++i) {
+            locks[i] = new Object();
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * The file storing the state of the machine at the specified position,
+     * relative to the save directory.
+     */
+    public static String stateFile(int dimension, int x, int y, int z, int clusterIndex) {
+        final String name = x + "_" + y + "_" + z + (clusterIndex >= 0 ? "." + clusterIndex : "");
+        return "example_machine/DIM" + dimension + "/" + name + ".dat";
+    }
+
+    public void save(String path, NBTTagCompound nbt) {
+        final File file = resolve(path);
+        discarded.remove(file);
+        pending.put(file, nbt);
+        // If the queue is full the write runs on the calling thread, which
+        // throttles saving rather than dropping anything.
+        executor().execute(new WriteTask(file));
+    }
+
+    public NBTTagCompound load(String path) {
+        final File file = resolve(path);
+        discarded.remove(file);
+        final NBTTagCompound snapshot = pending.get(file);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        synchronized (lock(file)) {
+            if (!file.exists()) {
+                ModExampleMachine.log.warn("Missing state file {}, machine state will be reset.", file);
+                return new NBTTagCompound();
+            }
+            InputStream stream = null;
+            try {
+                stream = new FileInputStream(file);
+                return CompressedStreamTools.readCompressed(stream);
+            }
+            catch (IOException e) {
+                ModExampleMachine.log.error("Failed reading state file " + file + ", machine state will be reset.", e);
+                return new NBTTagCompound();
+            }
+            finally {
+                closeQuietly(stream);
+            }
+        }
+    }
+
+    /**
+     * Has the file of a machine that was removed deleted with the next flush,
+     * unless it gets loaded or saved again before that.
+     */
+    public void discard(String path) {
+        discarded.add(resolve(path));
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Deletes discarded files and writes all pending snapshots on the calling
+     * thread, and returns once they are all on disk (or failed to be written).
+     */
+    public void flush() {
+        for (File file : discarded) {
+            delete(file);
+        }
+        discarded.clear();
+        for (File file : pending.keySet()) {
+            write(file);
+        }
+    }
+
+    public void shutdown() {
+        flush();
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        // Anything queued after our flush was picked up by the tasks.
+        flush();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @SubscribeEvent
+    public void onWorldSave(WorldEvent.Save e) {
+        // Fired after the world's chunks were saved, so all snapshots of this
+        // save have been queued by now.
+        if (!e.world.isRemote) {
+            flush();
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private void write(File file) {
+        synchronized (lock(file)) {
+            // Always write the latest snapshot; if it was written by another
+            // task in the meantime there's nothing left to do.
+            final NBTTagCompound nbt = pending.get(file);
+            if (nbt == null) return;
+
+            final File tmp = new File(file.getPath() + ".tmp");
+            OutputStream stream = null;
+            try {
+                file.getParentFile().mkdirs();
+                stream = new BufferedOutputStream(new FileOutputStream(tmp));
+                CompressedStreamTools.writeCompressed(nbt, stream);
+                stream.close();
+                stream = null;
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                // Only forget the snapshot if no newer one came in while we
+                // were writing, otherwise that one still has to be written.
+                pending.remove(file, nbt);
+            }
+            catch (IOException e) {
+                // Keep the snapshot pending, the next flush will try again.
+                ModExampleMachine.log.error("Failed writing state file " + file + ".", e);
+            }
+            finally {
+                closeQuietly(stream);
+            }
+        }
+    }
+
+    private void delete(File file) {
+        // Any queued write of the file finds nothing left to write, one in
+        // progress holds the lock until it is done.
+        pending.remove(file);
+        synchronized (lock(file)) {
+            if (file.exists() && !file.delete()) {
+                ModExampleMachine.log.warn("Failed deleting state file {}.", file);
+            }
+        }
+    }
+
+    Object lock(File file) {
+        return locks[(file.hashCode() & 0x7FFFFFFF) % locks.length];
+    }
+
+    File resolve(String path) {
+        return new File(root != null ? root : DimensionManager.getCurrentSaveRootDirectory(), path);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(Settings.persistenceThreads, Settings.persistenceThreads,
+                    30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Settings.persistenceQueueSize),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "ExampleMachine-Persistence-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private final class WriteTask implements Runnable {
+        private final File file;
+
+        WriteTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            write(file);
+        }
+    }
+}
@@ -0,0 +1,739 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.event.world.WorldEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores machine state in one append-only, memory-mapped file per dimension
+ * in the world's save directory, instead of in the chunk data.
+ * <p/>
+ * The chunk only keeps a reference: the dimension, an id identifying the
+ * machine, and the checksum of the state it saved. Saving serializes the
+ * state on the calling thread, since it must not change while we do, and
+ * computes the checksum; compressing it and appending it to the store is
+ * done by a background thread. Loading looks up the record for the id with
+ * the matching checksum, so a chunk that was saved before a newer state made
+ * it to the store (e.g. after a crash) still gets the state it saved. For
+ * that reason we keep the previous record of each machine in addition to
+ * the latest one.
+ * <p/>
+ * Since records are only ever appended, the store accumulates outdated ones,
+ * as well as those of machines that are gone for good. Once they make up
+ * more than the configured share of it, the background thread compacts the
+ * store into a new file containing only live records.
+ * <p/>
+ * Machines claim the id they loaded or created, and release it when they are
+ * unloaded or removed. The state of a removed machine is only dropped at the
+ * next world save, and only if no machine loaded or saved its id since: block
+ * movers save a machine, remove it and load it again elsewhere. A machine
+ * loading an id another machine still holds, i.e. a copy of its data, has
+ * to use a new id, so that the two don't share or drop each other's state.
+ * <p/>
+ * File layout: a header (magic, version, end of the last complete record),
+ * followed by records (id, checksum and size of the uncompressed state,
+ * size of the compressed state, compressed state). Deleting a machine's
+ * state appends a record without state, with an uncompressed size of -1.
+ * Anything after the end stored in the header is ignored, so a record that
+ * was not completely written is simply dropped.
+ */
+public final class MachineStateStore {
+    public static final MachineStateStore INSTANCE = new MachineStateStore();
+
+    private static final int MAGIC = 0x4F43534D;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    // Stores smaller than this are never compacted, it's not worth it.
+    private static final long MIN_COMPACT_SIZE = 4 * 1024 * 1024;
+
+    // Mapped buffers are indexed by int.
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    // Open stores by dimension. Guarded by the map itself.
+    private final Map<Integer, Store> stores = new HashMap<Integer, Store>();
+
+    // States that have been saved but not appended yet, by dimension and id.
+    private final Map<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+    // The machine holding each id, and the dimensions of ids released by
+    // machines that were removed. Only used by the server thread.
+    private final Map<Long, Object> owners = new HashMap<Long, Object>();
+    private final Map<Long, Integer> removed = new HashMap<Long, Integer>();
+
+    private ExecutorService writer;
+
+    // The directory stores are put in. The current world's save directory
+    // unless set, which tests do.
+    File root;
+
+    private MachineStateStore() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Creates a new id for a machine to store its state under.
+     */
+    public static long newId() {
+        return UUID.randomUUID().getMostSignificantBits();
+    }
+
+    /**
+     * Claims an id for the machine that loaded or created it. Returns false
+     * if another machine holds it already, in which case the caller has to
+     * use a new id.
+     */
+    public boolean claim(long id, Object owner) {
+        final Object current = owners.get(id);
+        if (current != null && current != owner) return false;
+        owners.put(id, owner);
+        removed.remove(id);
+        return true;
+    }
+
+    /**
+     * Releases a machine's claim on an id. If the machine was removed, its
+     * state is dropped at the next save of its world, unless the id gets
+     * claimed or saved again before that.
+     */
+    public void release(int dimension, long id, Object owner, boolean gone) {
+        if (owners.get(id) != owner) return;
+        owners.remove(id);
+        if (gone) {
+            removed.put(id, dimension);
+        }
+    }
+
+    /**
+     * Saves a machine's state and returns the checksum to reference it by.
+     */
+    public int save(int dimension, long id, NBTTagCompound nbt) {
+        removed.remove(id);
+        final byte[] data;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream stream = new DataOutputStream(bytes);
+            CompressedStreamTools.write(nbt, stream);
+            stream.close();
+            data = bytes.toByteArray();
+        }
+        catch (IOException e) {
+            // Can't really happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+
+        final Pending state = new Pending(dimension, id, data, checksum(data));
+        pending.put(key(dimension, id), state);
+        writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                append(state);
+            }
+        });
+        return state.checksum;
+    }
+
+    public NBTTagCompound load(int dimension, long id, int checksum) {
+        final Pending state = pending.get(key(dimension, id));
+        if (state != null && state.checksum == checksum) {
+            return deserialize(state.data, dimension, id);
+        }
+
+        try {
+            final byte[] data = store(dimension).read(id, checksum);
+            if (data == null) {
+                ModExampleMachine.log.warn("Missing state {} of machine {} in dimension {}, machine state will be reset.", checksum, id, dimension);
+                return new NBTTagCompound();
+            }
+            if (checksum(data) != checksum) {
+                ModExampleMachine.log.error("Corrupted state of machine {} in dimension {}, machine state will be reset.", id, dimension);
+                return new NBTTagCompound();
+            }
+            return deserialize(data, dimension, id);
+        }
+        catch (IOException e) {
+            ModExampleMachine.log.error("Failed reading state of machine " + id + " in dimension " + dimension + ", machine state will be reset.", e);
+            return new NBTTagCompound();
+        }
+    }
+
+    /**
+     * Drops the state of a machine that is gone for good.
+     */
+    public void delete(final int dimension, final long id) {
+        pending.remove(key(dimension, id));
+        writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store(dimension).delete(id);
+                }
+                catch (IOException e) {
+                    ModExampleMachine.log.error("Failed deleting state of machine " + id + " in dimension " + dimension + ".", e);
+                }
+            }
+        });
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Waits until everything saved so far is in the stores and the stores
+     * are synced to disk, then schedules compaction where worthwhile.
+     */
+    public void flush() {
+        if (writer == null) return;
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Store store : openStores()) {
+                        store.force();
+                    }
+                }
+            }).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            ModExampleMachine.log.error("Failed syncing machine state stores.", e.getCause());
+        }
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Store store : openStores()) {
+                    try {
+                        store.compactIfWorthwhile();
+                    }
+                    catch (IOException e) {
+                        ModExampleMachine.log.error("Failed compacting machine state store " + store.file + ".", e);
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        for (Store store : openStores()) {
+            store.close();
+        }
+        synchronized (stores) {
+            stores.clear();
+        }
+        pending.clear();
+        owners.clear();
+        removed.clear();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @SubscribeEvent
+    public void onWorldSave(WorldEvent.Save e) {
+        // Fired after the world's chunks were saved, so all states of this
+        // save have been handed to us by now, and any machine that is still
+        // around after being removed has claimed or saved its id again.
+        if (!e.world.isRemote) {
+            final int dimension = e.world.provider.dimensionId;
+            final Iterator<Map.Entry<Long, Integer>> it = removed.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Long, Integer> entry = it.next();
+                if (entry.getValue() == dimension) {
+                    it.remove();
+                    delete(dimension, entry.getKey());
+                }
+            }
+            flush();
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private void append(Pending state) {
+        try {
+            store(state.dimension).append(state.id, state.checksum, state.data.length, compress(state.data));
+
+            // Only forget the state if no newer one came in since.
+            pending.remove(key(state.dimension, state.id), state);
+        }
+        catch (IOException e) {
+            // Keep it pending, so it can at least still be loaded until the
+            // server stops.
+            ModExampleMachine.log.error("Failed storing state of machine " + state.id + " in dimension " + state.dimension + ".", e);
+        }
+    }
+
+    private Store store(int dimension) throws IOException {
+        synchronized (stores) {
+            Store store = stores.get(dimension);
+            if (store == null) {
+                final File directory = new File(root != null ? root : DimensionManager.getCurrentSaveRootDirectory(), "example_machine");
+                store = new Store(directory, dimension);
+                stores.put(dimension, store);
+            }
+            return store;
+        }
+    }
+
+    private List<Store> openStores() {
+        synchronized (stores) {
+            return new ArrayList<Store>(stores.values());
+        }
+    }
+
+    private ExecutorService writer() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ExampleMachine-StateStore");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writer;
+    }
+
+    private static String key(int dimension, long id) {
+        return dimension + ":" + id;
+    }
+
+    private static int checksum(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static NBTTagCompound deserialize(byte[] data, int dimension, long id) {
+        try {
+            return CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(data)));
+        }
+        catch (IOException e) {
+            ModExampleMachine.log.error("Failed reading state of machine " + id + " in dimension " + dimension + ", machine state will be reset.", e);
+            return new NBTTagCompound();
+        }
+    }
+
+    private static byte[] compress(byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                result.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return result.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data, int length) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                final int inflated = inflater.inflate(result, offset, length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += inflated;
+            }
+            if (offset != length) {
+                throw new IOException("Truncated record.");
+            }
+            return result;
+        }
+        catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private static final class Pending {
+        final int dimension;
+        final long id;
+        final byte[] data;
+        final int checksum;
+
+        Pending(int dimension, long id, byte[] data, int checksum) {
+            this.dimension = dimension;
+            this.id = id;
+            this.data = data;
+            this.checksum = checksum;
+        }
+    }
+
+    private static final class Record {
+        final long offset;
+        final int checksum;
+        final int rawLength;
+        final int length;
+
+        Record(long offset, int checksum, int rawLength, int length) {
+            this.offset = offset;
+            this.checksum = checksum;
+            this.rawLength = rawLength;
+            this.length = length;
+        }
+
+        int size() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    // The store of a single dimension. Appending and compacting only happen
+    // on the writer thread, reading happens on the server thread. Everything
+    // touching the mapping or the index is synchronized on the store, except
+    // for compaction reading the old file, which nobody writes to meanwhile.
+    private static final class Store {
+        final File directory;
+        final int dimension;
+        int generation;
+        File file;
+        RandomAccessFile access;
+        MappedByteBuffer buffer;
+        long end;
+        long garbage;
+
+        // Latest and previous record per machine id.
+        Map<Long, Record[]> index = new HashMap<Long, Record[]>();
+
+        Store(File directory, int dimension) throws IOException {
+            this.directory = directory;
+            this.dimension = dimension;
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Failed creating directory " + directory + ".");
+            }
+
+            // Use the newest generation, remove older ones that could not be
+            // deleted after compaction (e.g. because they were still mapped).
+            generation = -1;
+            final String prefix = "DIM" + dimension + ".";
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File candidate : files) {
+                    final int candidateGeneration = parseGeneration(candidate.getName(), prefix);
+                    if (candidateGeneration > generation) {
+                        generation = candidateGeneration;
+                    }
+                }
+                for (File candidate : files) {
+                    final int candidateGeneration = parseGeneration(candidate.getName(), prefix);
+                    if (candidateGeneration >= 0 && candidateGeneration != generation) {
+                        if (!candidate.delete()) {
+                            ModExampleMachine.log.warn("Failed deleting outdated machine state store {}.", candidate);
+                        }
+                    }
+                }
+            }
+            if (generation < 0) {
+                generation = 0;
+            }
+            file = fileFor(generation);
+
+            open(file, Math.max(file.length(), HEADER_SIZE + 1024 * 1024));
+            if (buffer.getInt(0) != MAGIC) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                end = HEADER_SIZE;
+                buffer.putLong(8, end);
+            }
+            else {
+                if (buffer.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported machine state store version in " + file + ".");
+                }
+                scan();
+            }
+        }
+
+        synchronized void append(long id, int checksum, int rawLength, byte[] data) throws IOException {
+            final long size = RECORD_HEADER_SIZE + data.length;
+            ensureCapacity(end + size);
+
+            final int offset = (int) end;
+            buffer.putLong(offset, id);
+            buffer.putInt(offset + 8, checksum);
+            buffer.putInt(offset + 12, rawLength);
+            buffer.putInt(offset + 16, data.length);
+            final ByteBuffer target = buffer.duplicate();
+            target.position(offset + RECORD_HEADER_SIZE);
+            target.put(data);
+
+            // Only now is the record complete.
+            end += size;
+            buffer.putLong(8, end);
+
+            index(new Record(offset, checksum, rawLength, data.length), id);
+        }
+
+        synchronized void delete(long id) throws IOException {
+            final Record[] records = index.remove(id);
+            if (records == null) return;
+
+            ensureCapacity(end + RECORD_HEADER_SIZE);
+            final int offset = (int) end;
+            buffer.putLong(offset, id);
+            buffer.putInt(offset + 8, 0);
+            buffer.putInt(offset + 12, -1);
+            buffer.putInt(offset + 16, 0);
+            end += RECORD_HEADER_SIZE;
+            buffer.putLong(8, end);
+
+            garbage += RECORD_HEADER_SIZE;
+            for (Record record : records) {
+                if (record != null) {
+                    garbage += record.size();
+                }
+            }
+        }
+
+        byte[] read(long id, int checksum) throws IOException {
+            final byte[] data;
+            final int rawLength;
+            synchronized (this) {
+                final Record[] records = index.get(id);
+                if (records == null) return null;
+                Record match = null;
+                for (Record record : records) {
+                    if (record != null && record.checksum == checksum) {
+                        match = record;
+                        break;
+                    }
+                }
+                if (match == null) return null;
+
+                data = new byte[match.length];
+                rawLength = match.rawLength;
+                final ByteBuffer source = buffer.duplicate();
+                source.position((int) match.offset + RECORD_HEADER_SIZE);
+                source.get(data);
+            }
+            return decompress(data, rawLength);
+        }
+
+        synchronized void force() {
+            buffer.force();
+        }
+
+        void compactIfWorthwhile() throws IOException {
+            final long live;
+            final Map<Long, Record[]> records;
+            synchronized (this) {
+                if (end < MIN_COMPACT_SIZE || garbage * 100 < end * Settings.storeCompactThreshold) return;
+                live = end - garbage;
+                records = new HashMap<Long, Record[]>(index);
+            }
+
+            // Write all live records into a new file. We're the only ones
+            // appending, so the current file does not change meanwhile, and
+            // we can read it without holding the lock.
+            final File newFile = fileFor(generation + 1);
+            final RandomAccessFile newAccess = new RandomAccessFile(newFile, "rw");
+            final MappedByteBuffer newBuffer;
+            final Map<Long, Record[]> newIndex = new HashMap<Long, Record[]>();
+            try {
+                newAccess.setLength(live);
+                newBuffer = newAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, live);
+                newBuffer.putInt(0, MAGIC);
+                newBuffer.putInt(4, VERSION);
+
+                final ByteBuffer source = buffer.duplicate();
+                final ByteBuffer target = newBuffer.duplicate();
+                target.position(HEADER_SIZE);
+                for (Map.Entry<Long, Record[]> entry : records.entrySet()) {
+                    final Record[] moved = new Record[2];
+                    // Oldest first, so the order within the file is preserved.
+                    for (int i = entry.getValue().length - 1; i >= 0; --i) {
+                        final Record record = entry.getValue()[i];
+                        if (record == null) continue;
+                        final int offset = target.position();
+                        source.limit((int) record.offset + record.size());
+                        source.position((int) record.offset);
+                        target.put(source);
+                        source.limit(source.capacity());
+                        moved[i] = new Record(offset, record.checksum, record.rawLength, record.length);
+                    }
+                    newIndex.put(entry.getKey(), moved);
+                }
+                newBuffer.putLong(8, target.position());
+                newBuffer.force();
+            }
+            catch (IOException e) {
+                closeQuietly(newAccess);
+                if (!newFile.delete()) {
+                    newFile.deleteOnExit();
+                }
+                throw e;
+            }
+
+            final File oldFile;
+            synchronized (this) {
+                closeQuietly(access);
+                oldFile = file;
+                ++generation;
+                file = newFile;
+                access = newAccess;
+                buffer = newBuffer;
+                end = newBuffer.getLong(8);
+                garbage = 0;
+                index = newIndex;
+            }
+            // May fail while the old mapping has not been collected yet, in
+            // which case it gets removed the next time the store is opened.
+            if (!oldFile.delete()) {
+                oldFile.deleteOnExit();
+            }
+            ModExampleMachine.log.info("Compacted machine state store of dimension {} to {} bytes.", dimension, end);
+        }
+
+        synchronized void close() {
+            if (buffer != null) {
+                buffer.force();
+            }
+            closeQuietly(access);
+        }
+
+        private void open(File file, long capacity) throws IOException {
+            access = new RandomAccessFile(file, "rw");
+            access.setLength(capacity);
+            buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        private void ensureCapacity(long required) throws IOException {
+            if (required <= buffer.capacity()) return;
+            if (required > MAX_SIZE) {
+                throw new IOException("Machine state store " + file + " is full.");
+            }
+            final long capacity = Math.min(MAX_SIZE, Math.max(required, buffer.capacity() * 2L));
+            access.setLength(capacity);
+            buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        private void scan() {
+            end = Math.min(buffer.getLong(8), buffer.capacity());
+            long offset = HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE <= end) {
+                final int position = (int) offset;
+                final long id = buffer.getLong(position);
+                final int checksum = buffer.getInt(position + 8);
+                final int rawLength = buffer.getInt(position + 12);
+                final int length = buffer.getInt(position + 16);
+                if (length < 0 || rawLength < -1 || offset + RECORD_HEADER_SIZE + length > end) {
+                    ModExampleMachine.log.warn("Truncating damaged machine state store {} at {}.", file, offset);
+                    break;
+                }
+                final Record record = new Record(offset, checksum, rawLength, length);
+                if (rawLength < 0) {
+                    final Record[] records = index.remove(id);
+                    garbage += record.size();
+                    if (records != null) {
+                        for (Record removed : records) {
+                            if (removed != null) {
+                                garbage += removed.size();
+                            }
+                        }
+                    }
+                }
+                else {
+                    index(record, id);
+                }
+                offset += record.size();
+            }
+            end = offset;
+            buffer.putLong(8, end);
+        }
+
+        private void index(Record record, long id) {
+            final Record[] records = index.get(id);
+            if (records == null) {
+                index.put(id, new Record[]{record, null});
+            }
+            else {
+                if (records[1] != null) {
+                    garbage += records[1].size();
+                }
+                records[1] = records[0];
+                records[0] = record;
+            }
+        }
+
+        private File fileFor(int generation) {
+            return new File(directory, "DIM" + dimension + "." + generation + ".store");
+        }
+
+        private static int parseGeneration(String name, String prefix) {
+            if (!name.startsWith(prefix) || !name.endsWith(".store")) return -1;
+            try {
+                return Integer.parseInt(name.substring(prefix.length(), name.length() - ".store".length()));
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package li.cil.oc.example.machine;
+
+import java.util.Arrays;
+
+/**
+ * Timings and counters of a single machine, see {@link MachineMetrics}.
+ * <p/>
+ * Tile entities only create one of these while instrumentation is enabled,
+ * so when it is disabled all they pay is a check of the setting.
+ */
+public final class MachineStats {
+    public final RollingHistogram updateTime = new RollingHistogram();
+    public final RollingHistogram saveTime = new RollingHistogram();
+    public final RollingHistogram loadTime = new RollingHistogram();
+
+    // Per slot, created when a component in that slot is first timed.
+    private RollingHistogram[] componentTimes = new RollingHistogram[0];
+
+    public long connects;
+    public long disconnects;
+
+    // ----------------------------------------------------------------------- //
+
+    public void recordUpdate(long nanos) {
+        updateTime.record(nanos);
+        MachineMetrics.INSTANCE.updateTime.record(nanos);
+    }
+
+    public void recordComponent(int slot, long nanos) {
+        if (slot >= componentTimes.length) {
+            componentTimes = Arrays.copyOf(componentTimes, slot + 1);
+        }
+        if (componentTimes[slot] == null) {
+            componentTimes[slot] = new RollingHistogram();
+        }
+        componentTimes[slot].record(nanos);
+        MachineMetrics.INSTANCE.componentTime.record(nanos);
+    }
+
+    public void recordSave(long nanos) {
+        saveTime.record(nanos);
+        MachineMetrics.INSTANCE.saveTime.record(nanos);
+    }
+
+    public void recordLoad(long nanos) {
+        loadTime.record(nanos);
+        MachineMetrics.INSTANCE.loadTime.record(nanos);
+    }
+
+    public void recordConnect() {
+        ++connects;
+        ++MachineMetrics.INSTANCE.connects;
+    }
+
+    public void recordDisconnect() {
+        ++disconnects;
+        ++MachineMetrics.INSTANCE.disconnects;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * The timings of the component in the specified slot, or null if it was
+     * never timed.
+     */
+    public RollingHistogram componentTime(int slot) {
+        return slot < componentTimes.length ? componentTimes[slot] : null;
+    }
+
+    /**
+     * Total time spent in all components' updates in the rolling window, in
+     * nanoseconds.
+     */
+    public long componentTotal() {
+        long total = 0;
+        for (RollingHistogram histogram : componentTimes) {
+            if (histogram != null) {
+                total += histogram.sum();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Total time spent updating and saving/loading this machine in the
+     * rolling window, in nanoseconds. This is what machines are ranked by.
+     */
+    public long total() {
+        return updateTime.sum() + componentTotal() + saveTime.sum() + loadTime.sum();
+    }
+}
@@ -0,0 +1,178 @@
+package li.cil.oc.example.machine;
+
+import net.minecraft.world.World;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What clients know about a machine: whether it is running, why it crashed,
+ * its energy and its components. Sent by {@link MachineStatusSync} to
+ * players near the machine, for status displays and the like, which can
+ * look it up via {@link #get} instead of asking the server.
+ * <p/>
+ * Instances are immutable, so they can be handed to the client thread
+ * while the network thread applies the next update.
+ */
+public final class MachineStatus {
+    // Machine states.
+    public static final byte STOPPED = 0;
+    public static final byte RUNNING = 1;
+    public static final byte CRASHED = 2;
+    public static final byte HIBERNATING = 3;
+
+    // Fields, for telling which ones an update contains.
+    static final int STATE = 1;
+    static final int CRASH = 2;
+    static final int ENERGY = 4;
+    static final int COMPONENTS = 8;
+    static final int ALL = STATE | CRASH | ENERGY | COMPONENTS;
+
+    // Nothing known yet; differs from any actual status in all fields.
+    static final MachineStatus UNKNOWN = new MachineStatus((byte) -1, null, -1, -1, null);
+
+    // Statuses received, on the client, see MachineStatusMessage.
+    private static final Map<Key, MachineStatus> received = new ConcurrentHashMap<Key, MachineStatus>();
+
+    private final byte state;
+    private final String crash;
+    private final double energy;
+    private final double energyCapacity;
+    private final Map<String, String> components;
+
+    MachineStatus(byte state, String crash, double energy, double energyCapacity, Map<String, String> components) {
+        this.state = state;
+        this.crash = crash;
+        this.energy = energy;
+        this.energyCapacity = energyCapacity;
+        this.components = components;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    public byte state() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return state == RUNNING;
+    }
+
+    /**
+     * The message the machine crashed with, if it did, otherwise null.
+     */
+    public String crash() {
+        return crash;
+    }
+
+    public double energy() {
+        return energy;
+    }
+
+    public double energyCapacity() {
+        return energyCapacity;
+    }
+
+    /**
+     * The components the machine knows about, address to component name.
+     */
+    public Map<String, String> components() {
+        return components != null ? components : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * Which fields of this status differ from the other status. Energy only
+     * counts as changed in steps of a percent of the capacity, since it
+     * changes in every tick the machine runs.
+     */
+    int diff(MachineStatus other) {
+        int mask = 0;
+        if (state != other.state) mask |= STATE;
+        if (crash == null ? other.crash != null : !crash.equals(other.crash)) mask |= CRASH;
+        if (energyCapacity != other.energyCapacity || energyLevel() != other.energyLevel()) mask |= ENERGY;
+        if (components == null ? other.components != null : !components.equals(other.components)) mask |= COMPONENTS;
+        return mask;
+    }
+
+    /**
+     * A copy of this status with the specified fields taken from the other.
+     */
+    MachineStatus with(int mask, MachineStatus other) {
+        return new MachineStatus(
+                (mask & STATE) != 0 ? other.state : state,
+                (mask & CRASH) != 0 ? other.crash : crash,
+                (mask & ENERGY) != 0 ? other.energy : energy,
+                (mask & ENERGY) != 0 ? other.energyCapacity : energyCapacity,
+                (mask & COMPONENTS) != 0 ? other.components : components);
+    }
+
+    private int energyLevel() {
+        return energyCapacity > 0 ? (int) (energy * 100 / energyCapacity) : 0;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * The last status received for the machine at the specified position,
+     * on the client, or null if there is none, e.g. because the player is
+     * not close enough to the machine.
+     */
+    public static MachineStatus get(World world, int x, int y, int z) {
+        return get(world, x, y, z, -1);
+    }
+
+    /**
+     * Same as {@link #get(World, int, int, int)}, for the machine with the
+     * specified index in the cluster at the specified position.
+     */
+    public static MachineStatus get(World world, int x, int y, int z, int clusterIndex) {
+        return received.get(new Key(world.provider.dimensionId, x, y, z, clusterIndex));
+    }
+
+    static void apply(int dimension, int x, int y, int z, int clusterIndex, int mask, MachineStatus update) {
+        final Key key = new Key(dimension, x, y, z, clusterIndex);
+        if (update == null) {
+            received.remove(key);
+            return;
+        }
+        final MachineStatus current = received.get(key);
+        received.put(key, (current != null ? current : UNKNOWN).with(mask, update));
+    }
+
+    // Forgets everything about machines in the specified chunk, before its
+    // full state is received, or when we're out of range.
+    static void clear(int dimension, int chunkX, int chunkZ) {
+        for (Iterator<Key> it = received.keySet().iterator(); it.hasNext(); ) {
+            final Key key = it.next();
+            if (key.dimension == dimension && key.x >> 4 == chunkX && key.z >> 4 == chunkZ) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Key {
+        final int dimension, x, y, z, index;
+
+        Key(int dimension, int x, int y, int z, int index) {
+            this.dimension = dimension;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return dimension == other.dimension && x == other.x && y == other.y && z == other.z && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((dimension * 31 + x) * 31 + y) * 31 + z) * 31 + index;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.network.ByteBufUtils;
+import cpw.mods.fml.common.network.simpleimpl.IMessage;
+import cpw.mods.fml.common.network.simpleimpl.IMessageHandler;
+import cpw.mods.fml.common.network.simpleimpl.MessageContext;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Status updates for the machines in one chunk, see MachineStatusSync.
+ * <p/>
+ * Each entry only contains the fields that changed since the last update
+ * the player received for the chunk, or all of them for players that did
+ * not receive the chunk before (a full update). Full updates replace all
+ * the client knows about the chunk, so an empty one makes it forget it.
+ * Positions are relative to the chunk, so an entry without changes other
+ * than its energy costs 12 bytes.
+ */
+public class MachineStatusMessage implements IMessage {
+    // Entry flag for machines that are gone, in addition to the fields.
+    private static final int REMOVED = 0x80;
+
+    private int dimension;
+    private int chunkX;
+    private int chunkZ;
+    private boolean full;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    // For deserialization.
+    public MachineStatusMessage() {
+    }
+
+    MachineStatusMessage(int dimension, int chunkX, int chunkZ, boolean full) {
+        this.dimension = dimension;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.full = full;
+    }
+
+    void add(TileEntityMachine host, int mask, MachineStatus status) {
+        entries.add(new Entry(host.xCoord, host.yCoord, host.zCoord, host.clusterIndex, mask, status));
+    }
+
+    void remove(int x, int y, int z, int clusterIndex) {
+        entries.add(new Entry(x, y, z, clusterIndex, REMOVED, null));
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    @Override
+    public void toBytes(ByteBuf buf) {
+        buf.writeInt(dimension);
+        buf.writeInt(chunkX);
+        buf.writeInt(chunkZ);
+        buf.writeBoolean(full);
+        ByteBufUtils.writeVarInt(buf, entries.size(), 5);
+        for (Entry entry : entries) {
+            buf.writeByte(((entry.x & 15) << 4) | (entry.z & 15));
+            buf.writeByte(entry.y);
+            buf.writeByte(entry.index + 1);
+            buf.writeByte(entry.mask);
+
+            final MachineStatus status = entry.status;
+            if ((entry.mask & MachineStatus.STATE) != 0) {
+                buf.writeByte(status.state());
+            }
+            if ((entry.mask & MachineStatus.CRASH) != 0) {
+                buf.writeBoolean(status.crash() != null);
+                if (status.crash() != null) {
+                    ByteBufUtils.writeUTF8String(buf, status.crash());
+                }
+            }
+            if ((entry.mask & MachineStatus.ENERGY) != 0) {
+                buf.writeFloat((float) status.energy());
+                buf.writeFloat((float) status.energyCapacity());
+            }
+            if ((entry.mask & MachineStatus.COMPONENTS) != 0) {
+                final Map<String, String> components = status.components();
+                ByteBufUtils.writeVarInt(buf, components.size(), 5);
+                for (Map.Entry<String, String> component : components.entrySet()) {
+                    ByteBufUtils.writeUTF8String(buf, component.getKey());
+                    ByteBufUtils.writeUTF8String(buf, component.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        dimension = buf.readInt();
+        chunkX = buf.readInt();
+        chunkZ = buf.readInt();
+        full = buf.readBoolean();
+        final int count = ByteBufUtils.readVarInt(buf, 5);
+        for (int i = 0; i < count; ++i) {
+            final int xz = buf.readByte() & 0xFF;
+            final int y = buf.readByte() & 0xFF;
+            final int index = (buf.readByte() & 0xFF) - 1;
+            final int mask = buf.readByte() & 0xFF;
+
+            byte state = 0;
+            String crash = null;
+            double energy = 0, energyCapacity = 0;
+            Map<String, String> components = null;
+            if ((mask & MachineStatus.STATE) != 0) {
+                state = buf.readByte();
+            }
+            if ((mask & MachineStatus.CRASH) != 0 && buf.readBoolean()) {
+                crash = ByteBufUtils.readUTF8String(buf);
+            }
+            if ((mask & MachineStatus.ENERGY) != 0) {
+                energy = buf.readFloat();
+                energyCapacity = buf.readFloat();
+            }
+            if ((mask & MachineStatus.COMPONENTS) != 0) {
+                final int componentCount = ByteBufUtils.readVarInt(buf, 5);
+                components = new HashMap<String, String>();
+                for (int j = 0; j < componentCount; ++j) {
+                    final String address = ByteBufUtils.readUTF8String(buf);
+                    components.put(address, ByteBufUtils.readUTF8String(buf));
+                }
+            }
+
+            final MachineStatus status = (mask & REMOVED) != 0 ? null :
+                    new MachineStatus(state, crash, energy, energyCapacity, components);
+            entries.add(new Entry((chunkX << 4) | (xz >> 4), y, (chunkZ << 4) | (xz & 15), index, mask, status));
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Runs on the network thread, which is why statuses are immutable.
+    public static class Handler implements IMessageHandler<MachineStatusMessage, IMessage> {
+        @Override
+        public IMessage onMessage(MachineStatusMessage message, MessageContext ctx) {
+            if (message.full) {
+                MachineStatus.clear(message.dimension, message.chunkX, message.chunkZ);
+            }
+            for (Entry entry : message.entries) {
+                MachineStatus.apply(message.dimension, entry.x, entry.y, entry.z, entry.index, entry.mask, entry.status);
+            }
+            return null;
+        }
+    }
+
+    private static final class Entry {
+        final int x, y, z, index;
+        final int mask;
+        final MachineStatus status;
+
+        Entry(int x, int y, int z, int index, int mask, MachineStatus status) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.index = index;
+            this.mask = mask;
+            this.status = status;
+        }
+    }
+}
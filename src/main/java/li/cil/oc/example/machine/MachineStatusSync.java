@@ -0,0 +1,269 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import cpw.mods.fml.common.network.NetworkRegistry;
+import cpw.mods.fml.common.network.simpleimpl.SimpleNetworkWrapper;
+import cpw.mods.fml.relauncher.Side;
+import li.cil.oc.api.machine.Machine;
+import li.cil.oc.api.network.Connector;
+import li.cil.oc.api.network.Node;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends the status of machines to the players near them, see MachineStatus.
+ * <p/>
+ * Machines are grouped by chunk. Every few ticks (the configured interval)
+ * each chunk with players in range gets checked for changes, and everything
+ * that changed in it since the last check goes out in a single packet.
+ * Players that were not in range at the last check get everything instead,
+ * players that left the range get an empty full update, which makes them
+ * forget about the chunk. Chunks without players in range are not looked at
+ * at all.
+ * <p/>
+ * The status of hibernating machines is not read, since that would wake
+ * them; clients keep what they had, just with the state set accordingly.
+ */
+public final class MachineStatusSync {
+    public static final MachineStatusSync INSTANCE = new MachineStatusSync();
+
+    private final Map<ChunkKey, Chunk> chunks = new HashMap<ChunkKey, Chunk>();
+
+    private SimpleNetworkWrapper channel;
+
+    private MachineStatusSync() {
+    }
+
+    public void init() {
+        channel = NetworkRegistry.INSTANCE.newSimpleChannel("OCExampleMachine");
+        channel.registerMessage(MachineStatusMessage.Handler.class, MachineStatusMessage.class, 0, Side.CLIENT);
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Called by machines once they have joined the network, and again when
+    // they resume from hibernation, so this must be idempotent.
+    void add(TileEntityMachine host) {
+        final World world = host.getWorldObj();
+        if (world == null || world.isRemote) return;
+
+        final ChunkKey key = new ChunkKey(world.provider.dimensionId, host.xCoord >> 4, host.zCoord >> 4);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new Chunk(world, key);
+            chunks.put(key, chunk);
+        }
+        if (!chunk.machines.containsKey(host)) {
+            chunk.machines.put(host, new Tracked());
+        }
+    }
+
+    void remove(TileEntityMachine host) {
+        final World world = host.getWorldObj();
+        if (world == null || chunks.isEmpty()) return;
+
+        final Chunk chunk = chunks.get(new ChunkKey(world.provider.dimensionId, host.xCoord >> 4, host.zCoord >> 4));
+        if (chunk == null) return;
+
+        final Tracked tracked = chunk.machines.remove(host);
+        if (tracked != null && tracked.sent != MachineStatus.UNKNOWN) {
+            chunk.removed.add(host);
+        }
+    }
+
+    public int chunkCount() {
+        return chunks.size();
+    }
+
+    public void clear() {
+        chunks.clear();
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent e) {
+        if (e.phase != TickEvent.Phase.END || chunks.isEmpty()) return;
+
+        for (Iterator<Chunk> it = chunks.values().iterator(); it.hasNext(); ) {
+            final Chunk chunk = it.next();
+            if (--chunk.cooldown > 0) continue;
+            chunk.cooldown = Settings.syncInterval;
+
+            chunk.sync();
+            if (chunk.machines.isEmpty() && chunk.receivers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Reads the current status of a machine, and returns the fields that
+    // changed since the last time. Hibernating machines only change state.
+    private static int refresh(TileEntityMachine host, Tracked tracked) {
+        final MachineStatus sent = tracked.sent;
+        final Machine machine = host.peekMachine();
+        final MachineStatus current;
+        if (host.isHibernating()) {
+            current = (sent != MachineStatus.UNKNOWN ? sent : new MachineStatus(MachineStatus.STOPPED, null, 0, 0, null))
+                    .with(MachineStatus.STATE, new MachineStatus(MachineStatus.HIBERNATING, null, 0, 0, null));
+        }
+        else if (machine == null) {
+            current = new MachineStatus(MachineStatus.STOPPED, null, 0, 0, null);
+        }
+        else {
+            final String crash = machine.lastError();
+            final byte state = machine.isRunning() ? MachineStatus.RUNNING :
+                    crash != null ? MachineStatus.CRASHED : MachineStatus.STOPPED;
+
+            final Node node = machine.node();
+            final double energy = node instanceof Connector ? ((Connector) node).globalBuffer() : 0;
+            final double energyCapacity = node instanceof Connector ? ((Connector) node).globalBufferSize() : 0;
+
+            // Only copy the component list if something connected or
+            // disconnected since we last did.
+            Map<String, String> components = sent.components();
+            if (tracked.componentVersion != host.componentVersion || sent == MachineStatus.UNKNOWN) {
+                tracked.componentVersion = host.componentVersion;
+                components = new HashMap<String, String>(machine.components());
+            }
+
+            current = new MachineStatus(state, crash, energy, energyCapacity, components);
+        }
+
+        final int mask = current.diff(sent);
+        if (mask != 0) {
+            tracked.sent = current;
+        }
+        return mask;
+    }
+
+    private final class Chunk {
+        final World world;
+        final ChunkKey key;
+        final Map<TileEntityMachine, Tracked> machines = new LinkedHashMap<TileEntityMachine, Tracked>();
+        final List<TileEntityMachine> removed = new ArrayList<TileEntityMachine>();
+        Set<EntityPlayerMP> receivers = new HashSet<EntityPlayerMP>();
+        int cooldown;
+
+        Chunk(World world, ChunkKey key) {
+            this.world = world;
+            this.key = key;
+        }
+
+        void sync() {
+            final Set<EntityPlayerMP> players = playersInRange();
+            if (players.isEmpty()) {
+                // Nobody to tell, and whoever comes next gets everything.
+                forget(receivers);
+                receivers = players;
+                removed.clear();
+                return;
+            }
+
+            boolean anyNew = false;
+            for (EntityPlayerMP player : players) {
+                if (!receivers.contains(player)) {
+                    anyNew = true;
+                    break;
+                }
+            }
+
+            final MachineStatusMessage delta = new MachineStatusMessage(key.dimension, key.x, key.z, false);
+            final MachineStatusMessage full = anyNew ? new MachineStatusMessage(key.dimension, key.x, key.z, true) : null;
+            for (TileEntityMachine host : removed) {
+                delta.remove(host.xCoord, host.yCoord, host.zCoord, host.clusterIndex);
+            }
+            removed.clear();
+            for (Map.Entry<TileEntityMachine, Tracked> entry : machines.entrySet()) {
+                final Tracked tracked = entry.getValue();
+                final int mask = refresh(entry.getKey(), tracked);
+                if (mask != 0) {
+                    delta.add(entry.getKey(), mask, tracked.sent);
+                }
+                if (full != null) {
+                    full.add(entry.getKey(), MachineStatus.ALL, tracked.sent);
+                }
+            }
+
+            for (EntityPlayerMP player : players) {
+                if (!receivers.contains(player)) {
+                    channel.sendTo(full, player);
+                }
+                else if (!delta.isEmpty()) {
+                    channel.sendTo(delta, player);
+                }
+            }
+            receivers.removeAll(players);
+            forget(receivers);
+            receivers = players;
+        }
+
+        // Players that can see any of the machines in this chunk, by the
+        // same measure as for using them, just farther.
+        @SuppressWarnings("unchecked")
+        private Set<EntityPlayerMP> playersInRange() {
+            final Set<EntityPlayerMP> players = new HashSet<EntityPlayerMP>();
+            for (Object entity : (List<Object>) world.playerEntities) {
+                if (!(entity instanceof EntityPlayerMP)) continue;
+                final EntityPlayerMP player = (EntityPlayerMP) entity;
+                for (TileEntityMachine host : machines.keySet()) {
+                    if (host.isInRange(player, Settings.syncRange)) {
+                        players.add(player);
+                        break;
+                    }
+                }
+            }
+            return players;
+        }
+
+        // Tells players that left the range to forget about the chunk, if
+        // they're still around to be told.
+        private void forget(Set<EntityPlayerMP> players) {
+            if (players.isEmpty()) return;
+            final MachineStatusMessage message = new MachineStatusMessage(key.dimension, key.x, key.z, true);
+            for (EntityPlayerMP player : players) {
+                if (world.playerEntities.contains(player)) {
+                    channel.sendTo(message, player);
+                }
+            }
+        }
+    }
+
+    // What we last sent for a machine, or UNKNOWN if nothing yet.
+    private static final class Tracked {
+        MachineStatus sent = MachineStatus.UNKNOWN;
+        int componentVersion;
+    }
+
+    private static final class ChunkKey {
+        final int dimension, x, z;
+
+        ChunkKey(int dimension, int x, int z) {
+            this.dimension = dimension;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChunkKey)) return false;
+            final ChunkKey other = (ChunkKey) obj;
+            return dimension == other.dimension && x == other.x && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (dimension * 31 + x) * 31 + z;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package li.cil.oc.example.machine;
+
+import com.google.gson.stream.JsonWriter;
+import cpw.mods.fml.common.eventhandler.EventPriority;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import li.cil.oc.api.network.Node;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records what machines spend their time on, event by event, into a ring
+ * buffer, for finding the one machine or component behind a lag spike that
+ * the aggregated metrics only show as a blip.
+ * <p/>
+ * Machines record the start and end of their update, of each component's
+ * update, of saving and loading, and of connecting and disconnecting nodes;
+ * the start and end of each server tick are recorded here. The buffer is
+ * preallocated when tracing starts, so recording an event only costs a
+ * timestamp and a few array stores, and when tracing is not active, a static
+ * field check. Events are only recorded on the server thread, so components
+ * updated in the parallel phase do not show up individually.
+ * <p/>
+ * Dumps are written in the Chrome trace event format, which can be viewed in
+ * chrome://tracing or Perfetto. Each dimension is a process, each machine a
+ * thread in it, so a misbehaving machine is its own row.
+ */
+public final class MachineTracer {
+    public static final MachineTracer INSTANCE = new MachineTracer();
+
+    // Event kinds. The end of an event has the END bit set.
+    static final byte TICK = 0;
+    static final byte UPDATE = 1;
+    static final byte COMPONENT = 2;
+    static final byte SAVE = 3;
+    static final byte LOAD = 4;
+    static final byte CONNECT = 5;
+    static final byte DISCONNECT = 6;
+    private static final byte END = (byte) 0x80;
+
+    private static final String[] NAMES = {"tick", "update", "component", "save", "load", "connect", "disconnect"};
+
+    // Whether events are being recorded. Only ever accessed on the server
+    // thread, so a plain static field suffices, like the settings.
+    static boolean active;
+
+    // The ring buffer, as parallel arrays. Its length is a power of two, so
+    // the write position can wrap with a mask.
+    private long[] times;
+    private byte[] kinds;
+    private TileEntityMachine[] hosts;
+    private Object[] subjects;
+    private int[] slots;
+    private int mask;
+    private int next;
+    private int count;
+
+    private MachineTracer() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Starts recording, into a buffer with room for at least the specified
+     * number of events. Restarting drops everything recorded so far.
+     */
+    public void start(int capacity) {
+        final int length = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        times = new long[length];
+        kinds = new byte[length];
+        hosts = new TileEntityMachine[length];
+        subjects = new Object[length];
+        slots = new int[length];
+        mask = length - 1;
+        next = 0;
+        count = 0;
+        active = true;
+    }
+
+    /**
+     * Stops recording and releases the buffer.
+     */
+    public void stop() {
+        active = false;
+        times = null;
+        kinds = null;
+        hosts = null;
+        subjects = null;
+        slots = null;
+        next = 0;
+        count = 0;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return times != null ? times.length : 0;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    void begin(TileEntityMachine host, byte kind) {
+        record(host, kind, null, -1);
+    }
+
+    void begin(TileEntityMachine host, byte kind, Object subject, int slot) {
+        record(host, kind, subject, slot);
+    }
+
+    void end(TileEntityMachine host, byte kind) {
+        record(host, (byte) (kind | END), null, -1);
+    }
+
+    private void record(TileEntityMachine host, byte kind, Object subject, int slot) {
+        final int index = next;
+        times[index] = System.nanoTime();
+        kinds[index] = kind;
+        hosts[index] = host;
+        subjects[index] = subject;
+        slots[index] = slot;
+        next = (index + 1) & mask;
+        if (count <= mask) {
+            ++count;
+        }
+    }
+
+    // Lowest priority, so that the machine updates run by the scheduler at
+    // the end of the tick are inside the tick's event.
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    public void onServerTick(TickEvent.ServerTickEvent e) {
+        if (!active) return;
+        if (e.phase == TickEvent.Phase.START) {
+            begin(null, TICK);
+        }
+        else {
+            end(null, TICK);
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Writes the events of the last specified number of seconds to the
+     * specified file, as Chrome trace JSON. The events are taken from the
+     * buffer right away, on the calling (server) thread; writing the file
+     * happens on a background thread. Returns the number of events written.
+     */
+    public int dump(double seconds, final File file) {
+        if (count == 0) return 0;
+
+        final long since = System.nanoTime() - (long) (seconds * 1e9);
+        final List<Event> events = new ArrayList<Event>();
+        final Map<TileEntityMachine, Row> rows = new IdentityHashMap<TileEntityMachine, Row>();
+        final Map<TileEntityMachine, Integer> depths = new IdentityHashMap<TileEntityMachine, Integer>();
+        for (int i = 0, index = (next - count) & mask; i < count; ++i, index = (index + 1) & mask) {
+            if (times[index] < since) continue;
+
+            // Drop ends of events whose start was already overwritten or is
+            // older than what we dump.
+            final TileEntityMachine host = hosts[index];
+            final boolean isEnd = (kinds[index] & END) != 0;
+            final Integer depth = depths.get(host);
+            final int current = depth != null ? depth : 0;
+            if (isEnd && current == 0) continue;
+            depths.put(host, isEnd ? current - 1 : current + 1);
+
+            Row row = rows.get(host);
+            if (row == null) {
+                row = host != null ? new Row(host, rows.size() + 1) : Row.TICK;
+                rows.put(host, row);
+            }
+            events.add(new Event(times[index], kinds[index], row, subjects[index], slots[index]));
+        }
+
+        final List<Row> rowList = new ArrayList<Row>(rows.values());
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(file, rowList, events);
+                    ModExampleMachine.log.info("Wrote machine trace with {} events to {}.", events.size(), file);
+                }
+                catch (IOException e) {
+                    ModExampleMachine.log.error("Failed writing machine trace to " + file + ".", e);
+                }
+            }
+        }, "ExampleMachine-TraceWriter");
+        writer.setDaemon(true);
+        writer.start();
+        return events.size();
+    }
+
+    private static void write(File file, List<Row> rows, List<Event> events) throws IOException {
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed creating directory " + parent + ".");
+        }
+
+        final long origin = events.isEmpty() ? 0 : events.get(0).time;
+        final JsonWriter json = new JsonWriter(new FileWriter(file));
+        try {
+            json.beginObject();
+            json.name("displayTimeUnit").value("ms");
+            json.name("traceEvents").beginArray();
+
+            for (Row row : rows) {
+                writeMetadata(json, "process_name", row.pid, 0, row.pid == Row.TICK.pid ? "server" : "dimension " + row.pid);
+                writeMetadata(json, "thread_name", row.pid, row.tid, row.name);
+            }
+
+            for (Event event : events) {
+                json.beginObject();
+                json.name("name").value(event.name);
+                json.name("cat").value(NAMES[event.kind & ~END]);
+                json.name("ph").value((event.kind & END) != 0 ? "E" : "B");
+                json.name("ts").value((event.time - origin) / 1e3);
+                json.name("pid").value(event.row.pid);
+                json.name("tid").value(event.row.tid);
+                json.endObject();
+            }
+
+            json.endArray();
+            json.endObject();
+        }
+        finally {
+            json.close();
+        }
+    }
+
+    private static void writeMetadata(JsonWriter json, String type, int pid, int tid, String name) throws IOException {
+        json.beginObject();
+        json.name("name").value(type);
+        json.name("ph").value("M");
+        json.name("pid").value(pid);
+        json.name("tid").value(tid);
+        json.name("args").beginObject().name("name").value(name).endObject();
+        json.endObject();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // A row in the trace viewer. Each dimension is a process, each machine a
+    // thread in it. The server tick gets a process of its own, with an id
+    // that is no valid dimension id.
+    private static final class Row {
+        static final Row TICK = new Row(Integer.MAX_VALUE, 0, "tick");
+
+        final int pid;
+        final int tid;
+        final String name;
+
+        Row(int pid, int tid, String name) {
+            this.pid = pid;
+            this.tid = tid;
+            this.name = name;
+        }
+
+        Row(TileEntityMachine host, int tid) {
+            this(host.getWorldObj() != null ? host.getWorldObj().provider.dimensionId : 0, tid,
+                    String.format("machine (%d, %d, %d)", host.xCoord, host.yCoord, host.zCoord) +
+                            (host.clusterIndex >= 0 ? " #" + host.clusterIndex : ""));
+        }
+    }
+
+    // A recorded event, with everything needed for writing it resolved, so
+    // it can be written without touching the game's state.
+    private static final class Event {
+        final long time;
+        final byte kind;
+        final Row row;
+        final String name;
+
+        Event(long time, byte kind, Row row, Object subject, int slot) {
+            this.time = time;
+            this.kind = kind;
+            this.row = row;
+            this.name = name(kind, subject, slot);
+        }
+
+        private static String name(byte kind, Object subject, int slot) {
+            final String name = NAMES[kind & ~END];
+            if (subject instanceof Node) {
+                final Node node = (Node) subject;
+                return name + " " + (node.host() != null ? node.host().getClass().getName() : node.address());
+            }
+            if (subject != null) {
+                return name + " " + slot + " " + subject.getClass().getName();
+            }
+            return name;
+        }
+    }
+}
@@ -1,8 +1,15 @@
 package li.cil.oc.example.machine;
 
+import cpw.mods.fml.common.FMLCommonHandler;
 import cpw.mods.fml.common.Mod;
 import cpw.mods.fml.common.event.FMLPreInitializationEvent;
+import cpw.mods.fml.common.event.FMLServerStartingEvent;
+import cpw.mods.fml.common.event.FMLServerStoppedEvent;
 import cpw.mods.fml.common.registry.GameRegistry;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.common.config.Configuration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * This mod demonstrates how to create custom Machines, i.e. computers. To
@@ -23,12 +30,88 @@ public class ModExampleMachine {
     @Mod.Instance
     public static ModExampleMachine instance;
 
+    public static final Logger log = LogManager.getLogger("OpenComputers|ExampleMachine");
+
     public static BlockMachine machine;
+    public static BlockMachine cluster;
 
     @Mod.EventHandler
     public void preInit(FMLPreInitializationEvent e) {
+        Settings.load(new Configuration(e.getSuggestedConfigurationFile()));
+
+        // Look up the items of the machine tiers once, instead of for each
+        // machine, see TileEntityMachine's constructors.
+        HardwareProfile.load(Settings.hardwareProfiles);
+        PayloadInterner.INSTANCE.configure(Settings.internedItems);
+
         machine = new BlockMachine();
-        GameRegistry.registerBlock(machine, "example_machine");
+        GameRegistry.registerBlock(machine, ItemBlockMachine.class, "example_machine");
         GameRegistry.registerTileEntity(TileEntityMachine.class, "oc:example_machine");
+
+        // Same block, but hosting several machines, see TileEntityCluster.
+        cluster = new BlockMachine(true);
+        GameRegistry.registerBlock(cluster, ItemBlockMachine.class, "example_machine_cluster");
+        GameRegistry.registerTileEntity(TileEntityCluster.class, "oc:example_machine_cluster");
+
+        // The scheduler runs the updates of all loaded machines at the end of
+        // each server tick, see TileEntityMachine.updateEntity.
+        FMLCommonHandler.instance().bus().register(MachineScheduler.INSTANCE);
+
+        // Admits queued machine starts at the start of each server tick.
+        FMLCommonHandler.instance().bus().register(BootQueue.INSTANCE);
+
+        // Flushes machine state written in the background when worlds save,
+        // see TileEntityMachine.writeToNBT.
+        MinecraftForge.EVENT_BUS.register(MachineStatePersistence.INSTANCE);
+        MinecraftForge.EVENT_BUS.register(MachineStateStore.INSTANCE);
+
+        // Keeps track of which shared payloads are referenced, and deletes
+        // the others when the world loads, see PayloadInterner.
+        MinecraftForge.EVENT_BUS.register(PayloadInterner.INSTANCE);
+
+        // Expires components kept for unloaded machines, and drops those of
+        // unloaded worlds, see TileEntityMachine.onDisconnect.
+        FMLCommonHandler.instance().bus().register(ComponentCache.INSTANCE);
+        MinecraftForge.EVENT_BUS.register(ComponentCache.INSTANCE);
+
+        // Timings of machines, see /machines top or the MBean.
+        FMLCommonHandler.instance().bus().register(MachineMetrics.INSTANCE);
+        MachineMetrics.INSTANCE.register();
+
+        // Event traces of machines, see /machines trace.
+        FMLCommonHandler.instance().bus().register(MachineTracer.INSTANCE);
+
+        // Status updates for nearby players. The channel is registered even
+        // when disabled, so clients and servers configured differently can
+        // still talk to each other.
+        MachineStatusSync.INSTANCE.init();
+        FMLCommonHandler.instance().bus().register(MachineStatusSync.INSTANCE);
+    }
+
+    @Mod.EventHandler
+    public void serverStarting(FMLServerStartingEvent e) {
+        e.registerServerCommand(new CommandMachines());
+        if (Settings.traceOnStart) {
+            MachineTracer.INSTANCE.start(Settings.traceEvents);
+        }
+    }
+
+    @Mod.EventHandler
+    public void serverStopped(FMLServerStoppedEvent e) {
+        // Don't keep references to machines of a server that is gone, e.g.
+        // when returning to the main menu in single player.
+        MachineScheduler.INSTANCE.clear();
+        BootQueue.INSTANCE.clear();
+        ParallelUpdater.INSTANCE.shutdown();
+        ComponentCache.INSTANCE.clear();
+        Hibernation.INSTANCE.clear();
+        MachineTracer.INSTANCE.stop();
+        PayloadInterner.INSTANCE.clear();
+        MachineStatusSync.INSTANCE.clear();
+
+        // Make sure everything still being written is on disk before the
+        // next server (or single player world) starts.
+        MachineStatePersistence.INSTANCE.shutdown();
+        MachineStateStore.INSTANCE.shutdown();
     }
 }
@@ -0,0 +1,148 @@
+package li.cil.oc.example.machine;
+
+import li.cil.oc.api.network.ManagedEnvironment;
+import li.cil.oc.api.network.Node;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates thread-safe components of all machines in parallel.
+ * <p/>
+ * When enabled, machines skip components that are thread-safe (see
+ * {@link ThreadSafeComponent} and the whitelist in the config) in their
+ * update and add them here instead. At the end of the tick, after all
+ * machines were updated, the collected components are updated on a fork-join
+ * pool. The server thread waits for all of them to finish before continuing,
+ * so nothing else runs while they do.
+ */
+public final class ParallelUpdater {
+    public static final ParallelUpdater INSTANCE = new ParallelUpdater();
+
+    // Number of components a single task updates before it stops splitting
+    // its range. Component updates are typically cheap, so forking for each
+    // individual one would cost more than it saves.
+    private static final int BATCH_SIZE = 32;
+
+    // Components collected for the current tick.
+    private final List<ManagedEnvironment> pending = new ArrayList<ManagedEnvironment>();
+
+    // Class names of component environments declared thread-safe in the
+    // config, built from the setting when first needed.
+    private Set<String> whitelist;
+
+    private ForkJoinPool pool;
+
+    private ParallelUpdater() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    public static boolean isThreadSafe(ManagedEnvironment environment) {
+        return environment instanceof ThreadSafeComponent ||
+                INSTANCE.whitelist().contains(environment.getClass().getName());
+    }
+
+    public void add(ManagedEnvironment environment) {
+        pending.add(environment);
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    public void run() {
+        if (pending.isEmpty()) return;
+
+        // Components may have been removed from their machine after it
+        // collected them this tick, e.g. when an item got pulled out.
+        final List<ManagedEnvironment> components = new ArrayList<ManagedEnvironment>(pending.size());
+        for (ManagedEnvironment environment : pending) {
+            final Node node = environment.node();
+            if (node == null || node.network() != null) {
+                components.add(environment);
+            }
+        }
+        pending.clear();
+
+        // Exceptions are rethrown here, on the server thread, same as if the
+        // component had been updated by its machine.
+        pool().invoke(new UpdateTask(components, 0, components.size()));
+    }
+
+    public void shutdown() {
+        pending.clear();
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pool = null;
+        }
+        whitelist = null;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private Set<String> whitelist() {
+        if (whitelist == null) {
+            final Set<String> names = new HashSet<String>();
+            for (String name : Settings.parallelWhitelist) {
+                names.add(name.trim());
+            }
+            whitelist = names;
+        }
+        return whitelist;
+    }
+
+    private ForkJoinPool pool() {
+        if (pool == null) {
+            final int threads = Settings.parallelThreads > 0 ?
+                    Settings.parallelThreads :
+                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("ExampleMachine-Parallel-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, null, false);
+        }
+        return pool;
+    }
+
+    private static final class UpdateTask extends RecursiveAction {
+        private final List<ManagedEnvironment> components;
+        private final int from, to;
+
+        UpdateTask(List<ManagedEnvironment> components, int from, int to) {
+            this.components = components;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; ++i) {
+                    components.get(i).update();
+                }
+            }
+            else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new UpdateTask(components, from, middle), new UpdateTask(components, middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,668 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import li.cil.oc.api.Items;
+import li.cil.oc.api.detail.ItemInfo;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagString;
+import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.common.util.Constants;
+import net.minecraftforge.event.world.WorldEvent;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Shares large, immutable payloads in item data, such as EEPROM code, between
+ * all machines that have the same payload, both in memory and on disk.
+ * <p/>
+ * In memory, byte arrays in the data of the configured items are replaced by
+ * the one canonical array with the same content. Components loading their
+ * state from the stack keep a reference to that array (OC's EEPROM does), so
+ * a hundred machines running the same BIOS hold it once. Canonical arrays are
+ * only referenced weakly from here, so a payload no machine uses any longer
+ * is simply collected.
+ * <p/>
+ * On disk, the saved item data refers to a payload by its SHA-256 hash, and
+ * the payload itself is written once, to a file named after the hash in the
+ * world's save directory. Only the stacks saved with the machine in the chunk
+ * are affected; stacks leaving the machine always carry their full data, so
+ * items dropped or taken out stay valid without us.
+ * <p/>
+ * Payload files no machine refers to any longer are deleted when the world
+ * loads. For that, machines tell us which payloads they referenced each time
+ * they are saved (see track), and we keep an index of that next to the
+ * payloads, written when the world saves. Since chunks reach the disk after
+ * the index does, the index also holds whatever machines referenced since it
+ * was last written, and payloads written or referenced anew after the last
+ * index was written are never deleted. Payloads written before the index
+ * existed, i.e. by versions not keeping one, are kept forever, since chunks
+ * not saved since may still refer to them.
+ * <p/>
+ * This relies on the arrays never being modified in place, which holds for
+ * OC's EEPROM, which replaces its arrays when they are written to. That is
+ * why it only applies to the items listed in the config. Only ever used on
+ * the server thread.
+ */
+public final class PayloadInterner {
+    public static final PayloadInterner INSTANCE = new PayloadInterner();
+
+    // The key of the compound a payload is replaced with in saved data.
+    private static final String REFERENCE_KEY = "oc-example:sha256";
+
+    // File systems store modification times at different resolutions, so we
+    // only trust them to be older than something when they're older by this.
+    private static final long MODIFIED_SLACK = 2000;
+
+    // Canonical arrays by their hash. Entries of collected arrays are removed
+    // when the queue tells us about them.
+    private final Map<String, Payload> payloads = new HashMap<String, Payload>();
+    private final ReferenceQueue<byte[]> queue = new ReferenceQueue<byte[]>();
+
+    // Hashes of canonical arrays. Arrays do not override equals, so this is
+    // weak and by identity, which saves hashing the same array on each save.
+    private final Map<byte[], String> hashes = new WeakHashMap<byte[], String>();
+
+    // Hashes of payloads known to be written to the current save.
+    private final Set<String> stored = new HashSet<String>();
+
+    // Payloads referenced by each machine, by its position, and how many
+    // machines reference each payload. What was referenced since the index
+    // was last written stays in here until it is written again.
+    private final Map<String, References> references = new HashMap<String, References>();
+    private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+    // When the index of the current save was first and last written, and
+    // whether it changed since.
+    private long indexCreated;
+    private long indexWritten;
+    private boolean indexChanged;
+
+    // Used instead of the save directory, for testing.
+    File root;
+
+    private Set<String> itemNames = new HashSet<String>();
+    private MessageDigest digest;
+
+    // Statistics, for the curious.
+    private long shared;
+    private long sharedBytes;
+
+    private PayloadInterner() {
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Sets the OpenComputers item names whose payloads are shared.
+     */
+    public void configure(String[] names) {
+        itemNames = new HashSet<String>(Arrays.asList(names));
+    }
+
+    public int size() {
+        purge();
+        return payloads.size();
+    }
+
+    public long sharedCount() {
+        return shared;
+    }
+
+    public long sharedBytes() {
+        return sharedBytes;
+    }
+
+    public int referencedCount() {
+        return counts.size();
+    }
+
+    /**
+     * Forgets which payloads are stored and referenced, since the next server
+     * may use another save directory. The index was written when the world
+     * was saved on shutdown. The canonical arrays go away by themselves.
+     */
+    public void clear() {
+        stored.clear();
+        references.clear();
+        counts.clear();
+        indexCreated = 0;
+        indexWritten = 0;
+        indexChanged = false;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    /**
+     * Whether the payloads in the data of the specified stack are shared.
+     */
+    public boolean isEligible(ItemStack stack) {
+        if (!Settings.payloadInterning || stack == null || !stack.hasTagCompound()) return false;
+        final ItemInfo info = Items.get(stack);
+        return info != null && itemNames.contains(info.name());
+    }
+
+    /**
+     * Replaces references in the data of a stack loaded from saved data with
+     * the payloads they refer to, and large payloads with their canonical
+     * arrays, if the stack is eligible. References are always resolved, so
+     * that machines saved with interning enabled still load after it was
+     * disabled.
+     */
+    public void intern(ItemStack stack) {
+        if (stack == null || !stack.hasTagCompound()) return;
+        intern(stack.getTagCompound(), isEligible(stack));
+    }
+
+    /**
+     * Creates a copy of the specified saved stack, with large payloads
+     * replaced by references. Payloads not stored in the current save yet
+     * are written before returning, so the reference never gets to disk
+     * without what it refers to.
+     */
+    public NBTTagCompound externalize(NBTTagCompound stackNbt) {
+        final NBTTagCompound result = new NBTTagCompound();
+        for (Object key : stackNbt.func_150296_c()) {
+            final String name = (String) key;
+            final NBTBase tag = stackNbt.getTag(name);
+            if (tag instanceof NBTTagByteArray && isLarge(((NBTTagByteArray) tag).func_150292_c())) {
+                result.setTag(name, reference(((NBTTagByteArray) tag).func_150292_c()));
+            }
+            else if (tag instanceof NBTTagCompound) {
+                result.setTag(name, externalize((NBTTagCompound) tag));
+            }
+            else {
+                result.setTag(name, tag.copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the hashes of the payloads referenced in the specified saved data
+     * to the specified set.
+     */
+    public void collect(NBTTagCompound nbt, Set<String> into) {
+        for (Object key : nbt.func_150296_c()) {
+            final NBTBase tag = nbt.getTag((String) key);
+            if (tag instanceof NBTTagCompound) {
+                final NBTTagCompound compound = (NBTTagCompound) tag;
+                if (isReference(compound)) {
+                    into.add(compound.getString(REFERENCE_KEY));
+                }
+                else {
+                    collect(compound, into);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remembers which payloads the machine at the specified position referred
+     * to when it was last saved, replacing what it referred to before.
+     */
+    public void track(int dimension, int x, int y, int z, int clusterIndex, Set<String> hashes) {
+        if (hashes.isEmpty() && references.isEmpty()) return;
+
+        final String owner = owner(dimension, x, y, z, clusterIndex);
+        References refs = references.get(owner);
+        if (refs == null) {
+            if (hashes.isEmpty()) return;
+            refs = new References();
+            references.put(owner, refs);
+        }
+        if (refs.current.equals(hashes)) return;
+
+        // What we referenced before stays retained until the index has been
+        // written, our chunk may not be on disk yet.
+        refs.current = new HashSet<String>(hashes);
+        for (String hash : hashes) {
+            if (refs.retained.add(hash)) {
+                retain(hash);
+            }
+        }
+        indexChanged = true;
+    }
+
+    /**
+     * Forgets about the machine at the specified position, which is gone for
+     * good, so the payloads only it referred to can be deleted.
+     */
+    public void untrack(int dimension, int x, int y, int z, int clusterIndex) {
+        final References refs = references.remove(owner(dimension, x, y, z, clusterIndex));
+        if (refs == null) return;
+
+        for (String hash : refs.retained) {
+            release(hash);
+        }
+        indexChanged = true;
+    }
+
+    @SubscribeEvent
+    public void onWorldLoad(WorldEvent.Load e) {
+        // The index is for the whole save, which is there once the overworld
+        // is, and no machine has been loaded or saved yet.
+        if (!e.world.isRemote && e.world.provider.dimensionId == 0) {
+            loadIndex();
+            sweep();
+        }
+    }
+
+    @SubscribeEvent
+    public void onWorldSave(WorldEvent.Save e) {
+        // Fired after the world's chunks were saved, so the machines in it
+        // told us what they refer to by now.
+        if (!e.world.isRemote && indexChanged) {
+            saveIndex();
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private void intern(NBTTagCompound nbt, boolean share) {
+        // Copy the keys, we may remove unresolvable references.
+        for (Object key : nbt.func_150296_c().toArray()) {
+            final String name = (String) key;
+            final NBTBase tag = nbt.getTag(name);
+            if (tag instanceof NBTTagByteArray) {
+                final byte[] bytes = ((NBTTagByteArray) tag).func_150292_c();
+                if (share && isLarge(bytes)) {
+                    final byte[] canonical = canonicalize(bytes);
+                    if (canonical != bytes) {
+                        nbt.setTag(name, new NBTTagByteArray(canonical));
+                    }
+                }
+            }
+            else if (tag instanceof NBTTagCompound) {
+                final NBTTagCompound compound = (NBTTagCompound) tag;
+                if (isReference(compound)) {
+                    final byte[] bytes = resolve(compound.getString(REFERENCE_KEY));
+                    if (bytes != null) {
+                        nbt.setTag(name, new NBTTagByteArray(bytes));
+                    }
+                    else {
+                        nbt.removeTag(name);
+                    }
+                }
+                else {
+                    intern(compound, share);
+                }
+            }
+        }
+    }
+
+    private static boolean isLarge(byte[] bytes) {
+        return bytes.length >= Settings.payloadMinSize;
+    }
+
+    private static boolean isReference(NBTTagCompound nbt) {
+        return nbt.func_150296_c().size() == 1 && nbt.hasKey(REFERENCE_KEY, Constants.NBT.TAG_STRING);
+    }
+
+    private byte[] canonicalize(byte[] bytes) {
+        final String hash = hash(bytes);
+        final byte[] canonical = lookup(hash);
+        if (canonical == bytes) {
+            return bytes;
+        }
+        if (canonical != null) {
+            ++shared;
+            sharedBytes += canonical.length;
+            return canonical;
+        }
+        register(hash, bytes);
+        return bytes;
+    }
+
+    private NBTBase reference(byte[] bytes) {
+        final String hash = hash(bytes);
+        if (!stored.contains(hash)) {
+            try {
+                store(hash, bytes);
+                stored.add(hash);
+            }
+            catch (IOException e) {
+                // Keep it inline then, which is what we'd have saved anyway.
+                ModExampleMachine.log.warn("Failed storing payload " + hash + ", saving it inline.", e);
+                return new NBTTagByteArray(bytes.clone());
+            }
+        }
+        final NBTTagCompound reference = new NBTTagCompound();
+        reference.setString(REFERENCE_KEY, hash);
+        return reference;
+    }
+
+    private byte[] resolve(String hash) {
+        final byte[] canonical = lookup(hash);
+        if (canonical != null) {
+            ++shared;
+            sharedBytes += canonical.length;
+            return canonical;
+        }
+
+        try {
+            final byte[] bytes = read(hash);
+            if (!hash.equals(hash(bytes))) {
+                ModExampleMachine.log.error("Stored payload {} is corrupted, dropping it.", hash);
+                return null;
+            }
+            register(hash, bytes);
+            stored.add(hash);
+            return bytes;
+        }
+        catch (IOException e) {
+            ModExampleMachine.log.error("Failed loading payload " + hash + ", dropping it.", e);
+            return null;
+        }
+    }
+
+    private byte[] lookup(String hash) {
+        purge();
+        final Payload payload = payloads.get(hash);
+        return payload != null ? payload.get() : null;
+    }
+
+    private void register(String hash, byte[] bytes) {
+        payloads.put(hash, new Payload(hash, bytes, queue));
+        hashes.put(bytes, hash);
+    }
+
+    private void purge() {
+        Payload payload;
+        while ((payload = (Payload) queue.poll()) != null) {
+            // The hash may have been registered anew in the meantime.
+            if (payloads.get(payload.hash) == payload) {
+                payloads.remove(payload.hash);
+            }
+        }
+    }
+
+    private String hash(byte[] bytes) {
+        final String known = hashes.get(bytes);
+        if (known != null) {
+            return known;
+        }
+
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available.", e);
+            }
+        }
+        final byte[] hash = digest.digest(bytes);
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String owner(int dimension, int x, int y, int z, int clusterIndex) {
+        return dimension + "/" + x + "/" + y + "/" + z + "/" + clusterIndex;
+    }
+
+    private void retain(String hash) {
+        final Integer count = counts.get(hash);
+        if (count != null) {
+            counts.put(hash, count + 1);
+            return;
+        }
+        counts.put(hash, 1);
+
+        // Referenced anew, maybe after the last index written said it was
+        // not, so make sure it survives a crash before the next one. Files
+        // older than the index are never deleted, no need to touch those.
+        final File file = file(hash);
+        if (file.lastModified() >= indexCreated && !file.setLastModified(System.currentTimeMillis())) {
+            ModExampleMachine.log.warn("Failed touching payload {}, it may be deleted after a crash.", hash);
+        }
+    }
+
+    private void release(String hash) {
+        final Integer count = counts.get(hash);
+        if (count == null) return;
+        if (count > 1) {
+            counts.put(hash, count - 1);
+        }
+        else {
+            counts.remove(hash);
+        }
+    }
+
+    // Deletes the payloads not referenced in the index, not used since the
+    // server started, and not written or referenced anew after the index was
+    // last written; the latter may be referenced from chunks written after
+    // it. Also deletes what's left over from writes that failed.
+    private void sweep() {
+        if (indexWritten == 0) return;
+
+        final File[] directories = directory().listFiles();
+        if (directories == null) return;
+
+        int deleted = 0;
+        long deletedBytes = 0;
+        for (File directory : directories) {
+            if (!directory.isDirectory()) continue;
+            final File[] files = directory.listFiles();
+            if (files == null) continue;
+
+            for (File file : files) {
+                final String name = file.getName();
+                final long modified = file.lastModified();
+                final boolean unused = name.endsWith(".tmp") || (!counts.containsKey(name) && !stored.contains(name) &&
+                        modified >= indexCreated && modified + MODIFIED_SLACK < indexWritten);
+                if (!unused) continue;
+
+                final long length = file.length();
+                if (file.delete()) {
+                    ++deleted;
+                    deletedBytes += length;
+                }
+            }
+            // Only succeeds if it is empty.
+            directory.delete();
+        }
+        if (deleted > 0) {
+            ModExampleMachine.log.info("Deleted {} unreferenced payloads ({} bytes).", deleted, deletedBytes);
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private File directory() {
+        return new File(root != null ? root : DimensionManager.getCurrentSaveRootDirectory(), "example_machine/payloads");
+    }
+
+    private File file(String hash) {
+        // Spread over subdirectories by the first byte of the hash, like git.
+        return new File(new File(directory(), hash.substring(0, 2)), hash);
+    }
+
+    private void loadIndex() {
+        references.clear();
+        counts.clear();
+        indexChanged = false;
+
+        final File file = new File(directory(), "references.dat");
+        if (!file.isFile()) {
+            // Tracking starts now; whatever is stored already stays.
+            indexCreated = System.currentTimeMillis();
+            indexWritten = 0;
+            return;
+        }
+
+        final NBTTagCompound nbt;
+        try {
+            final InputStream stream = new FileInputStream(file);
+            try {
+                nbt = CompressedStreamTools.readCompressed(stream);
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            // Start over, keeping everything stored so far, as above.
+            ModExampleMachine.log.error("Failed loading payload references, not deleting any payloads.", e);
+            indexCreated = System.currentTimeMillis();
+            indexWritten = 0;
+            indexChanged = true;
+            return;
+        }
+
+        indexCreated = nbt.getLong("created");
+        indexWritten = nbt.getLong("written");
+        final NBTTagList ownersNbt = nbt.getTagList("owners", Constants.NBT.TAG_COMPOUND);
+        for (int i = 0; i < ownersNbt.tagCount(); ++i) {
+            final NBTTagCompound ownerNbt = ownersNbt.getCompoundTagAt(i);
+            final NBTTagList hashesNbt = ownerNbt.getTagList("hashes", Constants.NBT.TAG_STRING);
+            final References refs = new References();
+            for (int j = 0; j < hashesNbt.tagCount(); ++j) {
+                final String hash = hashesNbt.getStringTagAt(j);
+                refs.current.add(hash);
+                refs.retained.add(hash);
+                final Integer count = counts.get(hash);
+                counts.put(hash, count != null ? count + 1 : 1);
+            }
+            references.put(ownerNbt.getString("owner"), refs);
+        }
+    }
+
+    private void saveIndex() {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        final long written = System.currentTimeMillis();
+        nbt.setLong("created", indexCreated);
+        nbt.setLong("written", written);
+        final NBTTagList ownersNbt = new NBTTagList();
+        for (Map.Entry<String, References> entry : references.entrySet()) {
+            final NBTTagCompound ownerNbt = new NBTTagCompound();
+            ownerNbt.setString("owner", entry.getKey());
+            final NBTTagList hashesNbt = new NBTTagList();
+            for (String hash : entry.getValue().retained) {
+                hashesNbt.appendTag(new NBTTagString(hash));
+            }
+            ownerNbt.setTag("hashes", hashesNbt);
+            ownersNbt.appendTag(ownerNbt);
+        }
+        nbt.setTag("owners", ownersNbt);
+
+        try {
+            final File file = new File(directory(), "references.dat");
+            final File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed creating directory " + directory + ".");
+            }
+            final File tmp = new File(file.getPath() + ".tmp");
+            final OutputStream stream = new FileOutputStream(tmp);
+            try {
+                CompressedStreamTools.writeCompressed(nbt, stream);
+            }
+            finally {
+                stream.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            // Keep everything retained, we'll try again with the next save.
+            ModExampleMachine.log.warn("Failed saving payload references.", e);
+            return;
+        }
+        indexWritten = written;
+        indexChanged = false;
+
+        // Chunks written before this are on disk by the next time we get
+        // here, so from now on only what is referenced currently matters.
+        for (Iterator<References> it = references.values().iterator(); it.hasNext(); ) {
+            final References refs = it.next();
+            if (refs.retained.size() == refs.current.size()) continue;
+            for (String hash : refs.retained) {
+                if (!refs.current.contains(hash)) {
+                    release(hash);
+                }
+            }
+            refs.retained = new HashSet<String>(refs.current);
+            if (refs.retained.isEmpty()) {
+                it.remove();
+            }
+            indexChanged = true;
+        }
+    }
+
+    private void store(String hash, byte[] bytes) throws IOException {
+        final File file = file(hash);
+        if (file.isFile() && file.length() == bytes.length) {
+            return;
+        }
+
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed creating directory " + directory + ".");
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        final OutputStream stream = new FileOutputStream(tmp);
+        try {
+            stream.write(bytes);
+        }
+        finally {
+            stream.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] read(String hash) throws IOException {
+        final File file = file(hash);
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream stream = new DataInputStream(new FileInputStream(file));
+        try {
+            stream.readFully(bytes);
+        }
+        finally {
+            stream.close();
+        }
+        return bytes;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // The payloads a machine referenced when it was last saved, and all it
+    // referenced since the index was last written (including the former).
+    private static final class References {
+        Set<String> current = new HashSet<String>();
+        Set<String> retained = new HashSet<String>();
+    }
+
+    private static final class Payload extends WeakReference<byte[]> {
+        final String hash;
+
+        Payload(String hash, byte[] bytes, ReferenceQueue<byte[]> queue) {
+            super(bytes, queue);
+            this.hash = hash;
+        }
+    }
+}
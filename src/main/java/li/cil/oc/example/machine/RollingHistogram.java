@@ -0,0 +1,135 @@
+package li.cil.oc.example.machine;
+
+/**
+ * A histogram of durations over the last minute or so.
+ * <p/>
+ * Values are sorted into power-of-two buckets (in nanoseconds), which is
+ * precise enough to tell a slow machine from a fast one, and makes recording
+ * a value a couple of array accesses. The histogram is split into a number
+ * of windows; the oldest one is cleared and reused when a new window starts,
+ * which is what makes it "rolling".
+ * <p/>
+ * Values are only recorded from the server thread. Reading from other threads
+ * (e.g. via JMX) is not synchronized, and may see slightly inconsistent
+ * values, which is fine for what this is used for.
+ */
+public final class RollingHistogram {
+    private static final int BUCKETS = 40;
+    private static final int WINDOWS = 6;
+    private static final long WINDOW_MILLIS = 10000;
+
+    private final long[][] counts = new long[WINDOWS][BUCKETS];
+    private final long[] sums = new long[WINDOWS];
+    private final long[] maxima = new long[WINDOWS];
+    private final long[] starts = new long[WINDOWS];
+    private int window;
+
+    public RollingHistogram() {
+        starts[0] = System.currentTimeMillis();
+    }
+
+    public void record(long nanos) {
+        final long now = System.currentTimeMillis();
+        if (now - starts[window] >= WINDOW_MILLIS) {
+            window = (window + 1) % WINDOWS;
+            final long[] bucketCounts = counts[window];
+            for (int i = 0; i < bucketCounts.length; ++i) {
+                bucketCounts[i] = 0;
+            }
+            sums[window] = 0;
+            maxima[window] = 0;
+            starts[window] = now;
+        }
+
+        final int bucket = nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+        ++counts[window][bucket];
+        sums[window] += nanos;
+        if (nanos > maxima[window]) {
+            maxima[window] = nanos;
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    public long count() {
+        final long oldest = oldest();
+        long count = 0;
+        for (int w = 0; w < WINDOWS; ++w) {
+            if (starts[w] >= oldest) {
+                for (long bucketCount : counts[w]) {
+                    count += bucketCount;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The sum of all recorded values, in nanoseconds.
+     */
+    public long sum() {
+        final long oldest = oldest();
+        long sum = 0;
+        for (int w = 0; w < WINDOWS; ++w) {
+            if (starts[w] >= oldest) {
+                sum += sums[w];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The mean of all recorded values, in nanoseconds.
+     */
+    public double mean() {
+        final long count = count();
+        return count > 0 ? sum() / (double) count : 0;
+    }
+
+    /**
+     * The largest recorded value, in nanoseconds.
+     */
+    public long max() {
+        final long oldest = oldest();
+        long max = 0;
+        for (int w = 0; w < WINDOWS; ++w) {
+            if (starts[w] >= oldest) {
+                max = Math.max(max, maxima[w]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * An upper bound for the specified percentile (0-1) of the recorded
+     * values, in nanoseconds. Precise to a factor of two.
+     */
+    public long percentile(double p) {
+        final long oldest = oldest();
+        final long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int w = 0; w < WINDOWS; ++w) {
+            if (starts[w] >= oldest) {
+                for (int i = 0; i < BUCKETS; ++i) {
+                    merged[i] += counts[w][i];
+                    count += counts[w][i];
+                }
+            }
+        }
+        if (count == 0) return 0;
+
+        final long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += merged[i];
+            if (seen >= rank) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << BUCKETS;
+    }
+
+    private static long oldest() {
+        return System.currentTimeMillis() - WINDOWS * WINDOW_MILLIS;
+    }
+}
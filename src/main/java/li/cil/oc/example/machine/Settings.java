@@ -0,0 +1,275 @@
+package li.cil.oc.example.machine;
+
+import net.minecraftforge.common.config.Configuration;
+
+/**
+ * Configurable values of the mod, read once in pre-init.
+ * <p/>
+ * These are plain static fields, so reading them from the hot paths (such as
+ * the tile entity's update) costs no more than any other field access.
+ */
+public final class Settings {
+    // The number of component slots of each machine.
+    public static int slotCount = 16;
+
+    // Definitions of the hardware profiles, i.e. machine tiers, see
+    // {@link HardwareProfile}. Resolved in pre-init.
+    public static String[] hardwareProfiles = new String[]{
+            "basic=,cpu1,ram2,ram2,graphicsCard1",
+            "advanced=,cpu2,ram4,ram4,graphicsCard2,hdd2",
+            "elite=,cpu3,ram6,ram6,graphicsCard3,hdd3,hdd3"
+    };
+
+    // The number of machines in newly placed clusters, see
+    // {@link TileEntityCluster}.
+    public static int clusterSize = 8;
+
+    // Whether machine updates should be run in one batched pass by the
+    // {@link MachineScheduler} instead of from each tile entity's update.
+    public static boolean schedulerEnabled = false;
+
+    // The time in milliseconds the scheduler may spend on machine updates
+    // per server tick. Machines that do not fit into this are deferred to
+    // the next tick.
+    public static double schedulerBudget = 10;
+
+    // Whether machines that are stopped or crashed should be taken off the
+    // per-tick update path.
+    public static boolean dormancyEnabled = false;
+
+    // The number of consecutive updates a machine has to be stopped before
+    // it becomes dormant.
+    public static int dormancyIdleTicks = 20;
+
+    // The interval in ticks in which dormant machines are still updated
+    // once, to notice state changes we cannot observe directly, such as a
+    // machine being started by another mod.
+    public static int dormancyCheckInterval = 5;
+
+    // Whether machines that have been dormant for long are saved and released
+    // until something addresses them, see TileEntityMachine.hibernate, after
+    // how many seconds, and after how many seconds they resume regardless
+    // (0 for never).
+    public static boolean hibernationEnabled = false;
+    public static int hibernationIdleSeconds = 300;
+    public static int hibernationWakeSeconds = 600;
+
+    // Whether machine state should be written to separate files by
+    // background threads, instead of being stored in the chunk data.
+    public static boolean asyncPersistence = false;
+
+    // Number of threads writing machine state in the background.
+    public static int persistenceThreads = 2;
+
+    // Maximum number of queued writes before saving threads block.
+    public static int persistenceQueueSize = 256;
+
+    // Whether machine state should be stored in a compressed, memory-mapped,
+    // append-only store per dimension, see {@link MachineStateStore}, and
+    // the share of outdated records in percent at which it gets compacted.
+    public static boolean stateStore = false;
+    public static int storeCompactThreshold = 50;
+
+    // Whether large payloads in the data of the listed items are shared
+    // between machines, see {@link PayloadInterner}, and the minimum size in
+    // bytes for a payload to be shared.
+    public static boolean payloadInterning = false;
+    public static String[] internedItems = new String[]{"eeprom"};
+    public static int payloadMinSize = 256;
+
+    // Maximum number of components created per tick across all machines.
+    public static int hydrationPerTick = 64;
+
+    // Whether components of unloaded machines are kept around for a while,
+    // see {@link ComponentCache}, and its limits: the number of machines, for
+    // how many seconds, and how many megabytes (estimated).
+    public static boolean componentCacheEnabled = false;
+    public static int componentCacheSize = 1024;
+    public static int componentCacheSeconds = 60;
+    public static int componentCacheMemory = 64;
+
+    // Whether to time machine updates, saving and loading, see
+    // {@link MachineMetrics}.
+    public static boolean instrumentationEnabled = false;
+
+    // The number of events the tracer keeps, see {@link MachineTracer}, and
+    // whether it records from server start, rather than only once started
+    // via command.
+    public static int traceEvents = 1 << 20;
+    public static boolean traceOnStart = false;
+
+    // Whether thread-safe components should be updated in parallel, see
+    // {@link ParallelUpdater}, on how many threads (0 for one less than
+    // there are processors), and the class names of component environments
+    // to consider thread-safe in addition to those marked as such.
+    public static boolean parallelEnabled = false;
+    public static int parallelThreads = 0;
+    public static String[] parallelWhitelist = new String[0];
+
+    // Whether the status of machines is sent to nearby players, see
+    // {@link MachineStatusSync}, within how many blocks, and at most how
+    // often, in ticks.
+    public static boolean syncEnabled = false;
+    public static int syncRange = 32;
+    public static int syncInterval = 10;
+
+    // Whether machines starting or resuming have to be admitted by the
+    // {@link BootQueue} first, and how many it admits.
+    public static boolean bootQueueEnabled = false;
+    public static int bootsPerTick = 4;
+    public static int bootsPerSecond = 40;
+
+    // ----------------------------------------------------------------------- //
+
+    public static void load(Configuration config) {
+        slotCount = config.getInt("slots", "machine", slotCount, 5, 64,
+                "The number of component slots of newly created machines. Each slot accepts any item there " +
+                        "is a driver for. Machines saved with more slots keep them.");
+        hardwareProfiles = config.getStringList("profiles", "machine", hardwareProfiles,
+                "The hardware profiles machines can be placed with, one variant of the machine block each. " +
+                        "Each is of the form `name=item,item,...`, listing the OpenComputers item names of " +
+                        "the components newly placed machines get, per slot; leave a slot's entry empty to " +
+                        "leave the slot empty. The order matters: it determines which variant is which, so " +
+                        "only append new profiles. At most 16 profiles are supported.");
+        clusterSize = config.getInt("clusterSize", "machine", clusterSize, 1, 64,
+                "The number of machines in newly placed clusters. Each machine in a cluster is equipped " +
+                        "according to the cluster's profile. Clusters saved with more machines keep them.");
+
+        schedulerEnabled = config.getBoolean("enabled", "scheduler", schedulerEnabled,
+                "Whether to run all machine updates in one batched pass at the end of each server tick, " +
+                        "limited by the configured time budget. If disabled, each machine updates itself in " +
+                        "its tile entity's update.");
+        schedulerBudget = config.getFloat("budget", "scheduler", (float) schedulerBudget, 0.1f, 1000f,
+                "The time in milliseconds the scheduler may spend on machine updates per server tick. " +
+                        "Machines that do not fit into this budget are deferred to the next tick, where " +
+                        "they will be updated first.");
+
+        dormancyEnabled = config.getBoolean("enabled", "dormancy", dormancyEnabled,
+                "Whether to take machines that are stopped or crashed off the per-tick update path. " +
+                        "Running machines are always updated every tick, even when idle, so their timers " +
+                        "keep running at normal speed. Dormant machines wake up when started or when a " +
+                        "component connects.");
+        dormancyIdleTicks = config.getInt("idleTicks", "dormancy", dormancyIdleTicks, 1, 72000,
+                "The number of consecutive updates a machine has to be stopped before it becomes dormant.");
+        dormancyCheckInterval = config.getInt("checkInterval", "dormancy", dormancyCheckInterval, 1, 1200,
+                "The interval in ticks in which dormant machines are still updated once, to notice things " +
+                        "such as being started by other mods.");
+
+        hibernationEnabled = config.getBoolean("enabled", "hibernation", hibernationEnabled,
+                "Whether to save and release machines that have been idle for a while, leaving only a " +
+                        "stub node with the machine's address in the network. The machine resumes when it " +
+                        "receives a signal, a player interacts with it, or the wake-up timer expires. " +
+                        "Machines with components that update themselves or are reachable by others in the " +
+                        "network, such as network cards, never hibernate.");
+        hibernationIdleSeconds = config.getInt("idleSeconds", "hibernation", hibernationIdleSeconds, 1, 86400,
+                "The number of seconds a machine has to be idle before it hibernates. Machines are idle " +
+                        "while stopped, or while running without doing any work, such as when waiting for " +
+                        "a signal.");
+        hibernationWakeSeconds = config.getInt("wakeSeconds", "hibernation", hibernationWakeSeconds, 0, 86400,
+                "The number of seconds after which a hibernating machine resumes regardless. Time does " +
+                        "not pass for hibernating machines, as for machines in unloaded chunks. 0 to only " +
+                        "resume when addressed.");
+
+        asyncPersistence = config.getBoolean("async", "persistence", asyncPersistence,
+                "Whether to store machine state in separate files in the world's save directory, which are " +
+                        "compressed and written by background threads, instead of in the chunk data. The " +
+                        "state is still captured on the server thread. Pending writes are flushed whenever " +
+                        "a world saves and when the server stops.");
+        persistenceThreads = config.getInt("threads", "persistence", persistenceThreads, 1, 16,
+                "The number of background threads writing machine state.");
+        persistenceQueueSize = config.getInt("queueSize", "persistence", persistenceQueueSize, 1, 65536,
+                "The maximum number of queued writes. When the queue is full, writes are performed on the " +
+                        "thread saving the machine instead.");
+
+        stateStore = config.getBoolean("store", "persistence", stateStore,
+                "Whether to store machine state compressed in one append-only, memory-mapped file per " +
+                        "dimension in the world's save directory, keeping only a reference and checksum in " +
+                        "the chunk data. Takes precedence over `async`. Machines saved with another setting " +
+                        "are still loaded, and switch over when next saved.");
+        storeCompactThreshold = config.getInt("storeCompactThreshold", "persistence", storeCompactThreshold, 10, 90,
+                "The share of outdated records in a store, in percent, at which it is compacted by a " +
+                        "background thread.");
+
+        payloadInterning = config.getBoolean("enabled", "interning", payloadInterning,
+                "Whether large payloads in the data of the listed items, such as EEPROM code, are shared " +
+                        "between all machines with the same payload. Saved machines then only refer to the " +
+                        "payload by its hash, and the payload is stored once in the world's save directory. " +
+                        "Payloads no machine refers to any longer are deleted when the world loads. " +
+                        "Machines saved this way still load when this is disabled again.");
+        internedItems = config.getStringList("items", "interning", internedItems,
+                "The OpenComputers item names whose payloads are shared. Only list items whose data is " +
+                        "never modified in place by their component.");
+        payloadMinSize = config.getInt("minSize", "interning", payloadMinSize, 64, 1024 * 1024,
+                "The minimum size of a payload to be shared, in bytes.");
+
+        hydrationPerTick = config.getInt("componentsPerTick", "hydration", hydrationPerTick, 1, 100000,
+                "The maximum number of components that may be created and connected per tick, across all " +
+                        "machines. Components of loaded machines are created right before the machine's " +
+                        "first update; machines that do not get all of their components in one tick wait " +
+                        "for the next.");
+
+        componentCacheEnabled = config.getBoolean("enabled", "componentCache", componentCacheEnabled,
+                "Whether to keep the components of machines in unloaded chunks around for a while, and " +
+                        "reattach them if the chunk is loaded again, instead of creating them anew. Helps with " +
+                        "chunks being loaded and unloaded repeatedly at the edge of where players are. " +
+                        "Components are only reattached if their state matches what is loaded exactly.");
+        componentCacheSize = config.getInt("size", "componentCache", componentCacheSize, 1, 100000,
+                "The maximum number of machines whose components are kept.");
+        componentCacheSeconds = config.getInt("seconds", "componentCache", componentCacheSeconds, 1, 3600,
+                "The number of seconds after which the components of a machine that was not loaded again " +
+                        "are dropped.");
+        componentCacheMemory = config.getInt("memory", "componentCache", componentCacheMemory, 1, 4096,
+                "The maximum amount of memory, in megabytes, the kept components may take up. This is an " +
+                        "estimate based on the size of their saved state.");
+
+        syncEnabled = config.getBoolean("enabled", "sync", syncEnabled,
+                "Whether to send the status of machines (running, crashed, energy, components) to players " +
+                        "near them, for status displays. Only changes are sent, in one packet per chunk.");
+        syncRange = config.getInt("range", "sync", syncRange, 8, 256,
+                "The distance in blocks within which players receive the status of a machine.");
+        syncInterval = config.getInt("interval", "sync", syncInterval, 1, 200,
+                "The number of ticks between status updates for the machines in a chunk.");
+
+        bootQueueEnabled = config.getBoolean("enabled", "boot", bootQueueEnabled,
+                "Whether machines starting, or resuming after being loaded, have to wait in a queue until " +
+                        "they are admitted. Avoids all machines booting in the same tick after a restart. " +
+                        "Machines started by players go first, resuming machines are ordered by how long " +
+                        "they have been running.");
+        bootsPerTick = config.getInt("perTick", "boot", bootsPerTick, 1, 10000,
+                "The maximum number of machines that may start or resume per tick.");
+        bootsPerSecond = config.getInt("perSecond", "boot", bootsPerSecond, 1, 200000,
+                "The maximum number of machines that may start or resume per second.");
+
+        parallelEnabled = config.getBoolean("enabled", "parallel", parallelEnabled,
+                "Whether to update thread-safe components of all machines in parallel at the end of each " +
+                        "server tick, instead of with their machine. The server thread waits for all of them " +
+                        "to finish. Components are thread-safe if they implement ThreadSafeComponent or are " +
+                        "listed in the whitelist.");
+        parallelThreads = config.getInt("threads", "parallel", parallelThreads, 0, 256,
+                "The number of threads updating components in parallel. 0 uses one less than the number of " +
+                        "available processors.");
+        parallelWhitelist = config.getStringList("whitelist", "parallel", parallelWhitelist,
+                "Fully qualified class names of component environments that are safe to update off the " +
+                        "server thread, i.e. that only touch their own state in their update. Only add " +
+                        "components you know to be safe, otherwise expect crashes or corrupted state.");
+
+        instrumentationEnabled = config.getBoolean("enabled", "instrumentation", instrumentationEnabled,
+                "Whether to time machine and component updates, saving and loading, and count component " +
+                        "connects and disconnects. The results are available via JMX and the " +
+                        "`/machines top` command.");
+        traceEvents = config.getInt("traceEvents", "instrumentation", traceEvents, 1024, 1 << 26,
+                "The number of events the machine tracer keeps, i.e. how far back traces reach. Each event " +
+                        "takes about 24 bytes while tracing, which is started and dumped via the " +
+                        "`/machines trace` command. With many machines, expect tens of thousands of events " +
+                        "per second.");
+        traceOnStart = config.getBoolean("traceOnStart", "instrumentation", traceOnStart,
+                "Whether to start tracing when the server starts, for catching spikes right after startup.");
+
+        if (config.hasChanged()) {
+            config.save();
+        }
+    }
+
+    private Settings() {
+    }
+}
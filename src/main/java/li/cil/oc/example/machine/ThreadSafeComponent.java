@@ -0,0 +1,16 @@
+package li.cil.oc.example.machine;
+
+/**
+ * Marker for component environments whose {@code update()} may be called
+ * from a worker thread, concurrently with the updates of other components.
+ * <p/>
+ * When the parallel update phase is enabled, such components are not
+ * updated with their machine, but together with those of all other machines
+ * in one pass at the end of the server tick, see {@link ParallelUpdater}.
+ * Implementations must only touch their own state in their update; in
+ * particular they must not access the world, send network messages or
+ * signal their machine. Components of other mods can be declared thread-safe
+ * via the config instead.
+ */
+public interface ThreadSafeComponent {
+}
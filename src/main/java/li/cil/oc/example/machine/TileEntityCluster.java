@@ -0,0 +1,158 @@
+package li.cil.oc.example.machine;
+
+import li.cil.oc.api.Network;
+import li.cil.oc.api.network.Node;
+import li.cil.oc.api.network.Visibility;
+import li.cil.oc.api.prefab.TileEntityEnvironment;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraftforge.common.util.Constants;
+
+/**
+ * A block hosting several independent machines, for setups that need a lot
+ * of computers in little space.
+ * <p/>
+ * Each machine in the cluster is a TileEntityMachine of its own, with its own
+ * slots, components and address, and is the host of its machine, as usual.
+ * Those tile entities are not placed in the world, though: this one is, and
+ * it updates, saves and loads them along with itself. So the world only has
+ * one tile entity to tick and one record to save per cluster, and everything
+ * else (scheduling, dormancy, hibernation and so on) works the same as for
+ * machines of their own.
+ * <p/>
+ * Instead of each machine connecting to our neighbors, our node connects to
+ * the neighbors and all machines connect to our node, like a cable would.
+ * That node is not visible to anything, it only bridges. Like machines
+ * connected by cable, the machines in a cluster share everything reachable
+ * in the network, but not each other's internal components.
+ */
+public class TileEntityCluster extends TileEntityEnvironment {
+    private TileEntityMachine[] machines = new TileEntityMachine[0];
+
+    // Used when loading a cluster from its saved data, which is where its
+    // machines come from.
+    public TileEntityCluster() {
+        node = Network.newNode(this, Visibility.None).create();
+    }
+
+    // Used when a cluster is placed, to equip each of its machines according
+    // to the profile.
+    public TileEntityCluster(HardwareProfile profile) {
+        this();
+        machines = new TileEntityMachine[Settings.clusterSize];
+        for (int i = 0; i < machines.length; ++i) {
+            machines[i] = adopt(new TileEntityMachine(profile), i);
+        }
+    }
+
+    public int size() {
+        return machines.length;
+    }
+
+    public TileEntityMachine machine(int index) {
+        return machines[index];
+    }
+
+    /**
+     * Starts all machines in the cluster.
+     */
+    public void start() {
+        for (TileEntityMachine machine : machines) {
+            machine.start();
+        }
+    }
+
+    // Connects the node of one of our machines, see TileEntityMachine.joinNetwork.
+    void join(Node machineNode) {
+        if (node.network() == null) {
+            Network.joinNewNetwork(node);
+        }
+        node.connect(machineNode);
+    }
+
+    private TileEntityMachine adopt(TileEntityMachine machine, int index) {
+        machine.cluster = this;
+        machine.clusterIndex = index;
+        place(machine);
+        return machine;
+    }
+
+    private void place(TileEntityMachine machine) {
+        machine.setWorldObj(worldObj);
+        machine.xCoord = xCoord;
+        machine.yCoord = yCoord;
+        machine.zCoord = zCoord;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // The world tells us where we are after creating or loading us, so this
+    // is where our machines learn it, too.
+
+    @Override
+    public void validate() {
+        super.validate();
+        for (TileEntityMachine machine : machines) {
+            place(machine);
+        }
+    }
+
+    // Our node joins the network around us in the parent's update, before
+    // any of our machines do in theirs.
+
+    @Override
+    public void updateEntity() {
+        super.updateEntity();
+        if (worldObj.isRemote) return;
+        for (TileEntityMachine machine : machines) {
+            machine.updateEntity();
+        }
+    }
+
+    // Machines leave before our node does, so the network isn't split up
+    // into one part per machine on the way.
+
+    @Override
+    public void onChunkUnload() {
+        for (TileEntityMachine machine : machines) {
+            machine.onChunkUnload();
+        }
+        super.onChunkUnload();
+    }
+
+    @Override
+    public void invalidate() {
+        for (TileEntityMachine machine : machines) {
+            machine.invalidate();
+        }
+        super.invalidate();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // All machines are saved in our record. The number of machines is what
+    // we were saved with, so changing the configured size does not lose any.
+
+    @Override
+    public void readFromNBT(NBTTagCompound nbt) {
+        super.readFromNBT(nbt);
+        final NBTTagList machinesNbt = nbt.getTagList("machines", Constants.NBT.TAG_COMPOUND);
+        machines = new TileEntityMachine[machinesNbt.tagCount()];
+        for (int i = 0; i < machines.length; ++i) {
+            machines[i] = adopt(new TileEntityMachine(), i);
+            machines[i].readFromNBT(machinesNbt.getCompoundTagAt(i));
+        }
+    }
+
+    @Override
+    public void writeToNBT(NBTTagCompound nbt) {
+        super.writeToNBT(nbt);
+        final NBTTagList machinesNbt = new NBTTagList();
+        for (TileEntityMachine machine : machines) {
+            final NBTTagCompound machineNbt = new NBTTagCompound();
+            machine.writeToNBT(machineNbt);
+            machinesNbt.appendTag(machineNbt);
+        }
+        nbt.setTag("machines", machinesNbt);
+    }
+}
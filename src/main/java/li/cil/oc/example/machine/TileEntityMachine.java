@@ -2,41 +2,54 @@ package li.cil.oc.example.machine;
 
 import li.cil.oc.api.Driver;
 import li.cil.oc.api.Items;
+import li.cil.oc.api.Network;
 import li.cil.oc.api.driver.Item;
 import li.cil.oc.api.machine.Machine;
 import li.cil.oc.api.machine.MachineHost;
 import li.cil.oc.api.network.ManagedEnvironment;
+import li.cil.oc.api.network.Message;
 import li.cil.oc.api.network.Node;
+import li.cil.oc.api.network.Visibility;
 import li.cil.oc.api.prefab.TileEntityEnvironment;
 import net.minecraft.entity.player.EntityPlayer;
-import net.minecraft.inventory.IInventory;
+import net.minecraft.inventory.ISidedInventory;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.nbt.NBTTagList;
 import net.minecraft.world.World;
 import net.minecraftforge.common.util.Constants;
-import scala.actors.threadpool.Arrays;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
 
-public class TileEntityMachine extends TileEntityEnvironment implements IInventory, MachineHost {
+public class TileEntityMachine extends TileEntityEnvironment implements ISidedInventory, MachineHost {
     private Machine machine;
 
-    // Track actual item stacks. We'll have most of the components pre-
-    // configured in this case, except for the EEPROM which must be inserted
-    // manually. This could just as well be a completely dynamic list, as
-    // long as the components for the items are properly created and destroyed
-    // whenever an item is added/removed (which in this example implementation
-    // would be no additional effort whatsoever, by the way).
-    private ItemStack[] inventory = new ItemStack[]{
-            null, // Reserved for EEPROM / IInventory
-            Items.get("cpu1").createItemStack(1),
-            Items.get("ram2").createItemStack(1),
-            Items.get("ram2").createItemStack(1),
-            Items.get("graphicsCard1").createItemStack(1)
-    };
+    // Track actual item stacks. Newly placed machines are equipped with the
+    // components of their hardware profile, usually everything except for
+    // the EEPROM, which must be inserted manually. Every slot is dynamic,
+    // though, so any of the preconfigured components can be swapped out just
+    // the same; the components for the items are created and destroyed
+    // whenever an item is added/removed. The number of slots is configurable,
+    // and grows when loading a machine that was saved with more slots, or
+    // when the profile defines more (see ensureSlots).
+    private ItemStack[] inventory = new ItemStack[Settings.slotCount];
+
+    // Copies of our stacks handed out by getStackInSlot, which hoppers and
+    // the like poll constantly. Created on demand, and dropped whenever the
+    // stack in the slot changes. stackCopyTags are the tags of our stacks
+    // the copies were made from. internalComponents hands out a read-only
+    // view of the inventory array, which only needs replacing when the
+    // array itself is (see ensureSlots).
+    private ItemStack[] stackCopies = new ItemStack[inventory.length];
+    private NBTTagCompound[] stackCopyTags = new NBTTagCompound[inventory.length];
+    private List<ItemStack> inventoryView = readOnlyView(inventory);
 
     // The list of currently active components, one for each item installed.
     // These are mapped by index to the item stacks (i.e. same indices belong
@@ -45,8 +58,140 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
 
     // The list of *updating* components. Components that need to be updated
     // each tick are managed here. Avoids looping over the full list of
-    // components each tick.
-    private List<ManagedEnvironment> updatingComponents = new ArrayList<ManagedEnvironment>(components.length);
+    // components each tick. This is a dense array, so the update loop is a
+    // plain indexed loop. We also track which slot each entry belongs to and
+    // vice versa (-1 if not updating), so entries can be removed in constant
+    // time by moving the last entry into their place. Whether a component
+    // may be updated in the parallel phase is determined once, when adding it.
+    private ManagedEnvironment[] updatingComponents = new ManagedEnvironment[inventory.length];
+    private int[] updatingComponentSlots = new int[inventory.length];
+    private boolean[] updatingComponentThreadSafe = new boolean[inventory.length];
+    private int[] updatingComponentIndices = newIndexArray(inventory.length);
+    private int updatingComponentCount;
+
+    // Lookup of component slots by address, for componentSlot, which OC
+    // calls quite frequently. We also remember the address each slot was
+    // indexed with, to be able to remove the right entry again. Note that
+    // component addresses are only guaranteed to be set once they have been
+    // connected to a network, so we re-index components after connecting.
+    private Map<String, Integer> componentSlots = new HashMap<String, Integer>();
+    private String[] componentAddresses = new String[components.length];
+
+    // The drivers for the items in each slot, resolved once when the slot's
+    // component is created, so we don't have to look them up again for
+    // each save.
+    private Item[] drivers = new Item[inventory.length];
+
+    // Incremental saving. We keep what we wrote for each slot and for the
+    // machine in the last save, and reuse that as long as nothing changed.
+    // A null entry means the slot needs saving. Since we cannot observe
+    // every change to a component's state, we consider *everything* dirty
+    // as soon as the machine ran, got connected or told us its state
+    // changed (via markChanged). So this mostly helps with machines that
+    // are stopped, which is the common case on larger servers.
+    private NBTTagCompound[] savedStacks = new NBTTagCompound[inventory.length];
+    private NBTTagCompound savedMachine;
+    private boolean dirty = true;
+
+    // Whether savedMachine has been handed to the background persistence
+    // yet, see writeToNBT.
+    private boolean savedMachinePersisted;
+
+    // The id our state is kept under in the MachineStateStore, if it is,
+    // and the checksum of the state we last handed to it. We hold a claim
+    // on the id as long as we're around, see MachineStateStore.claim.
+    private long stateId;
+    private int savedMachineChecksum;
+
+    // Whether the chunk we're in should be marked as modified. Set in
+    // markChanged, applied once in our next update, so that many state
+    // changes in a single tick only cause a single chunk update.
+    private boolean chunkModified;
+
+    // Components are created lazily, right before the machine's first update
+    // (see hydrateComponents), and only so many per tick across all machines.
+    // This is the number of leading slots that have been processed so far.
+    private int hydratedSlots;
+
+    // Warm standby of components across chunk unloads (see ComponentCache).
+    // unloading is set while we're being unloaded, so we know to park our
+    // components; cachedComponents holds what we got back from the cache
+    // until all slots are hydrated. Components created for a previous tile
+    // entity at our position keep that one as their host, so we remember it
+    // per slot and have it forward to us (successor).
+    private boolean unloading;
+    private boolean cacheChecked;
+    private ComponentCache.Entry cachedComponents;
+    private TileEntityMachine[] componentHosts = new TileEntityMachine[inventory.length];
+    private TileEntityMachine successor;
+
+    // Boot admission. Resuming after being loaded and starting both have to
+    // wait for the boot queue to admit us, if enabled. bootPending is managed
+    // by the queue, bootStart means we're to start the machine when admitted
+    // and resumeChecked whether we already checked if we have to resume.
+    boolean bootPending;
+    private boolean bootStart;
+    private boolean resumeChecked;
+
+    // Timings and counters, only created while instrumentation is enabled.
+    private MachineStats stats;
+
+    // Whether we're currently waiting in the scheduler's queue. Managed by
+    // the scheduler, used to avoid enqueueing a deferred machine twice.
+    boolean scheduled;
+
+    // Dormancy tracking. Machines that are stopped or crashed for a while are
+    // taken off the per-tick update path, and are only updated every so often
+    // to notice changes we cannot observe directly, until something wakes
+    // them up again.
+    private boolean dormant;
+    private int idleTicks;
+    private int checkCountdown;
+
+    // Hibernation. Machines idle for long enough save their state and
+    // release the machine and all components, leaving only a stub node with
+    // the machine's address in the network. Messages sent to the stub, such
+    // as signals, are kept and replayed once the machine is back; wakeTime
+    // is the world time at which we resume regardless. hibernatedBytes is
+    // the estimate of memory we released, see Hibernation. activeAt is the
+    // world time the machine last did something, or -1 if we don't know
+    // yet; lastRunning and lastCpuTime are what the machine reported in the
+    // last update.
+    private boolean hibernated;
+    private Node stubNode;
+    private List<Message> pendingMessages;
+    private boolean wakeRequested;
+    private long wakeTime;
+    private long hibernatedBytes;
+    private long activeAt = -1;
+    private boolean lastRunning;
+    private double lastCpuTime;
+
+    // Whether the state we went into hibernation with is only in the state
+    // store, and not in savedMachine.
+    private boolean stateInStore;
+
+    // The cluster we're a member of, if any, and our index in it. Members of
+    // a cluster are not in the world themselves; the cluster's tile entity
+    // updates, saves and loads them, and they join the network through the
+    // cluster's node instead of looking for neighbors (see TileEntityCluster).
+    TileEntityCluster cluster;
+    int clusterIndex = -1;
+
+    // Incremented whenever a node connects to or disconnects from the
+    // machine, so MachineStatusSync knows when to look at its components.
+    int componentVersion;
+
+    // Used when loading a machine from its saved data, which is where its
+    // items come from, so there's nothing to set up.
+    public TileEntityMachine() {
+    }
+
+    // Used when a machine is placed, to equip it according to its profile.
+    public TileEntityMachine(HardwareProfile profile) {
+        ensureSlots(profile.slotCount());
+        profile.copyInto(inventory);
+    }
 
     @Override
     public Node node() {
@@ -54,8 +199,9 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
         // connect the machine to the node network, and allow it to use
         // connected block components, for example. We do not wish to
         // use the machine() getter here, to avoid creating an instance
-        // if this is called on the client side.
-        return machine != null ? machine.node() : null;
+        // if this is called on the client side, or waking up the machine
+        // if it is hibernating, in which case its stub stands in for it.
+        return machine != null ? machine.node() : stubNode;
     }
 
     // ----------------------------------------------------------------------- //
@@ -69,27 +215,70 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
     @Override
     public void onConnect(Node node) {
         super.onConnect(node);
+
+        // While hibernating, only our stub is in the network, and the saved
+        // state is what it is.
+        if (hibernated) return;
+
+        final boolean tracing = MachineTracer.active;
+        if (tracing) {
+            MachineTracer.INSTANCE.begin(this, MachineTracer.CONNECT, node, -1);
+        }
+
+        dirty = true;
+
+        if (node != node()) {
+            ++componentVersion;
+        }
+        if (Settings.instrumentationEnabled && node != node()) {
+            stats().recordConnect();
+        }
+
+        // Something connected to us, be it our own node or a component. The
+        // machine will want to queue a signal for that, so wake up.
+        wake();
+
         if (node == node()) {
+            // Let the scheduler know we exist, so that it will run our
+            // updates when we enqueue ourselves.
+            MachineScheduler.INSTANCE.register(this);
+
             // When the machine is connected to the world, connect all
             // components, because that's how they will know they are now
-            // in the world (i.e. have access to a world object).
+            // in the world (i.e. have access to a world object). Components
+            // that have not been created yet will be connected as they are
+            // created, before the first update (see hydrateComponents).
             for (int i = 0; i < inventory.length; ++i) {
-                // Make sure the component has been created. This is necessary
-                // if the tile entity was created for the first time, since
-                // we don't want to create the components before this, as they
-                // may be overwritten by the ones created when loading.
-                createComponent(i, inventory[i]);
-
                 if (components[i] != null) {
                     node.connect(components[i].node());
+                    indexComponent(i);
                 }
             }
         }
+
+        if (tracing) {
+            MachineTracer.INSTANCE.end(this, MachineTracer.CONNECT);
+        }
     }
 
     @Override
     public void onDisconnect(Node node) {
         super.onDisconnect(node);
+        if (hibernated) return;
+
+        final boolean tracing = MachineTracer.active;
+        if (tracing) {
+            MachineTracer.INSTANCE.begin(this, MachineTracer.DISCONNECT, node, -1);
+        }
+
+        dirty = true;
+
+        if (node != node()) {
+            ++componentVersion;
+        }
+        if (Settings.instrumentationEnabled && node != node()) {
+            stats().recordDisconnect();
+        }
         if (node == node()) {
             // When the machine gets disconnected (unloaded), disconnect all
             // components, because that's how they will know they have to
@@ -97,14 +286,76 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
             // Note that this is called on invalidate and onChunkUnload,
             // because our main node gets disconnected by the parent class
             // in these cases!
+            setDormant(false);
+            MachineScheduler.INSTANCE.unregister(this);
+            BootQueue.INSTANCE.cancel(this);
+            bootStart = false;
+
             for (ManagedEnvironment environment : components) {
                 if (environment != null) {
                     environment.node().remove();
                 }
             }
+
+            // Chunk unloads are frequently followed by loading the chunk
+            // again, so keep the components around for a while.
+            if (unloading && Settings.componentCacheEnabled) {
+                ComponentCache.INSTANCE.park(this, inventory, components, drivers, componentHosts);
+            }
+        }
+
+        if (tracing) {
+            MachineTracer.INSTANCE.end(this, MachineTracer.DISCONNECT);
         }
     }
 
+    @Override
+    public void onMessage(Message message) {
+        super.onMessage(message);
+
+        // Only our stub's messages arrive here, the machine's node has the
+        // machine as its host. Anything sent to the machine is a reason to
+        // wake it up; signals are kept for the machine to receive once it
+        // is back, up to what it could queue itself.
+        if (hibernated && message.source() != stubNode) {
+            wakeRequested = true;
+            if (message.name().startsWith("computer.")) {
+                if (pendingMessages == null) {
+                    pendingMessages = new ArrayList<Message>();
+                }
+                if (pendingMessages.size() < MAX_PENDING_MESSAGES) {
+                    pendingMessages.add(message);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onChunkUnload() {
+        unloading = true;
+        super.onChunkUnload();
+        releaseStateId(false);
+        releaseStub();
+        MachineStatusSync.INSTANCE.remove(this);
+    }
+
+    // Being invalidated without being unloaded means we're gone for good,
+    // be it because we were broken, blown up or replaced, or we're being
+    // moved, which is the same thing followed by another tile entity loading
+    // what we saved. So we only let go of our state, and the store drops it
+    // unless someone picks it up again, see MachineStateStore.release.
+
+    @Override
+    public void invalidate() {
+        super.invalidate();
+        releaseStateId(!unloading);
+        if (!unloading) {
+            discardSavedState();
+        }
+        releaseStub();
+        MachineStatusSync.INSTANCE.remove(this);
+    }
+
     // ----------------------------------------------------------------------- //
 
     // Updating the machine and components is pretty straight-forward. You
@@ -112,22 +363,398 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
     // in, though, just to make sure the complete network has been rebuilt
     // before the update (otherwise the machine will quickly disconnect those
     // not yet loaded components, then reconnect them in the next tick).
+    // When the scheduler is enabled we don't update ourselves, but only let
+    // the scheduler know we'd like to be updated this tick. It'll then call
+    // updateMachine at the end of the tick, budget permitting.
 
     @Override
     public void updateEntity() {
+        if (chunkModified) {
+            chunkModified = false;
+            worldObj.markTileEntityChunkModified(xCoord, yCoord, zCoord, this);
+        }
+
+        // On the server we join the network ourselves, see joinNetwork. The
+        // parent class would join it right away otherwise.
+        if (worldObj.isRemote) {
+            super.updateEntity();
+            return;
+        }
+        if (hibernated) {
+            if (wakeRequested || worldObj.getTotalWorldTime() >= wakeTime) {
+                resume();
+            }
+            return;
+        }
+        if (!addedToNetwork) {
+            joinNetwork();
+            return;
+        }
+
         // Wait with the first machine update until the machine has been
         // connected to the network. Also skip the first tick, to ensure
         // the complete network has been rebuilt, to avoid losing components
         // that are actually still there, just haven't been reconnected yet.
-        if (!worldObj.isRemote && machine().node().network() != null) {
-            machine().update();
+        if (machine().node().network() != null && (!dormant || --checkCountdown <= 0)) {
+            checkCountdown = Settings.dormancyCheckInterval;
+            if (Settings.schedulerEnabled) {
+                MachineScheduler.INSTANCE.enqueue(this);
+            }
+            else {
+                updateMachine();
+            }
+        }
+    }
+
+    // Joining the network in bulk. Connecting each component to the machine
+    // after it joined the (possibly large) network of its surroundings means
+    // one network operation per component against that network. Instead, we
+    // first put the machine's node into a network of its own, connect all of
+    // our components to it there, and only then join the networks around
+    // us, which merges everything in one go. Since components are created
+    // lazily and limited per tick (see hydrateComponents), this may take a
+    // few ticks, during which we're not visible to our surroundings.
+    // Leaving works the same in reverse already: our node is removed first,
+    // which splits off all of our components at once, and removing them
+    // from their now separate networks is cheap.
+
+    private void joinNetwork() {
+        final Node node = machine().node();
+        if (node.network() == null) {
+            Network.joinNewNetwork(node);
+        }
+        if (hydratedSlots < inventory.length && !hydrateComponents()) {
+            return;
+        }
+        addedToNetwork = true;
+        joinSurroundings();
+        if (Settings.syncEnabled) {
+            MachineStatusSync.INSTANCE.add(this);
+        }
+    }
+
+    // Connects our node to what's around us, which for cluster members is
+    // their cluster.
+    private void joinSurroundings() {
+        if (cluster != null) {
+            cluster.join(node());
+        }
+        else {
+            Network.joinOrCreateNetwork(this);
+        }
+    }
 
-            for (ManagedEnvironment environment : updatingComponents) {
-                environment.update();
+    void updateMachine() {
+        // We may have been deferred by the scheduler, and been disconnected
+        // in the meantime, so check again.
+        if (machine().node().network() == null) return;
+
+        // Don't update until all components are there, otherwise the machine
+        // would think they went missing.
+        if (hydratedSlots < inventory.length && !hydrateComponents()) return;
+
+        // Machines that were running when they got saved resume in their first
+        // update. Make them wait for their turn, like machines being started.
+        if (bootPending) return;
+        if (!resumeChecked) {
+            resumeChecked = true;
+            if (Settings.bootQueueEnabled && machine().isRunning()) {
+                BootQueue.INSTANCE.request(this, machine().upTime());
+                return;
             }
         }
 
-        super.updateEntity();
+        // A running machine may change its own state as well as that of any
+        // of its components, so we have to save everything next time.
+        if (machine().isRunning()) {
+            dirty = true;
+        }
+
+        // Only pay for timing when instrumentation is enabled, and for
+        // tracing while a trace is being recorded.
+        final MachineStats stats = Settings.instrumentationEnabled ? stats() : null;
+        long start = stats != null ? System.nanoTime() : 0;
+        final boolean tracing = MachineTracer.active;
+
+        if (tracing) {
+            MachineTracer.INSTANCE.begin(this, MachineTracer.UPDATE);
+        }
+        machine().update();
+        if (tracing) {
+            MachineTracer.INSTANCE.end(this, MachineTracer.UPDATE);
+        }
+
+        if (stats != null) {
+            final long now = System.nanoTime();
+            stats.recordUpdate(now - start);
+            start = now;
+        }
+
+        final boolean parallel = Settings.parallelEnabled;
+        for (int i = 0; i < updatingComponentCount; ++i) {
+            if (parallel && updatingComponentThreadSafe[i]) {
+                ParallelUpdater.INSTANCE.add(updatingComponents[i]);
+                continue;
+            }
+
+            if (tracing) {
+                MachineTracer.INSTANCE.begin(this, MachineTracer.COMPONENT, updatingComponents[i], updatingComponentSlots[i]);
+            }
+            updatingComponents[i].update();
+            if (tracing) {
+                MachineTracer.INSTANCE.end(this, MachineTracer.COMPONENT);
+            }
+
+            if (stats != null) {
+                final long now = System.nanoTime();
+                stats.recordComponent(updatingComponentSlots[i], now - start);
+                start = now;
+            }
+        }
+
+        updateDormancy();
+        updateHibernation();
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Dormancy. Many machines spend most of their time stopped or crashed,
+    // in which case updating them every tick is wasted effort. Running
+    // machines are never dormant, even when they're just waiting for a
+    // signal: the machine's clock and power use advance in its updates, so
+    // skipping them would slow down timers and uptime for its programs.
+    // Anything that may require the machine to do actual work (starting it,
+    // components connecting) wakes it up again immediately; anything else
+    // is picked up by the periodic check update.
+
+    public boolean start() {
+        wake();
+        if (Settings.bootQueueEnabled) {
+            // Queue the start. Players get to go first, since they'll be
+            // waiting for something to happen.
+            if (machine().isRunning()) return false;
+            bootStart = true;
+            BootQueue.INSTANCE.request(this, Double.POSITIVE_INFINITY);
+            return true;
+        }
+        return machine().start();
+    }
+
+    void admitBoot() {
+        wake();
+        if (bootStart) {
+            bootStart = false;
+            machine().start();
+        }
+    }
+
+    public boolean isDormant() {
+        return dormant;
+    }
+
+    public void wake() {
+        idleTicks = 0;
+        setDormant(false);
+    }
+
+    private void updateDormancy() {
+        if (!Settings.dormancyEnabled) return;
+
+        if (!machine().isRunning()) {
+            if (!dormant && ++idleTicks >= Settings.dormancyIdleTicks) {
+                checkCountdown = Settings.dormancyCheckInterval;
+                setDormant(true);
+            }
+        }
+        else {
+            wake();
+        }
+    }
+
+    public MachineStats stats() {
+        if (stats == null && Settings.instrumentationEnabled) {
+            stats = new MachineStats();
+        }
+        return stats;
+    }
+
+    private void setDormant(boolean value) {
+        if (dormant != value) {
+            dormant = value;
+            MachineScheduler.INSTANCE.onDormancyChanged(value);
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Hibernation. An idle machine still holds on to its architecture and
+    // all components, which adds up on servers with many computers that are
+    // stopped, or running but waiting for signals that rarely come. So once
+    // a machine has been idle for long enough, we save everything
+    // like for a chunk save and let go of the machine and its components,
+    // leaving only a stub node with the machine's address in its place.
+    // Anything addressing the machine brings it back, be it a message to the
+    // stub, a player using the block or the inventory, or anything else
+    // calling machine(). So does a timer, if configured; time stands still
+    // for hibernating machines, like for those in unloaded chunks. Resuming
+    // is just like being loaded from the chunk again.
+    // Machines with components that update themselves or can be reached by
+    // others in the network (e.g. network cards) are never hibernated, since
+    // those would miss what happens while they're gone.
+
+    // Messages kept while hibernating; this is what a machine queues itself.
+    private static final int MAX_PENDING_MESSAGES = 256;
+
+    public boolean isHibernating() {
+        return hibernated;
+    }
+
+    // A machine is idle while it is stopped, or while it is running but its
+    // updates do no work: a machine with a signal queued or with a program
+    // to run uses CPU time to handle it. This is independent of dormancy,
+    // which only ever applies to stopped machines. A signal queued after
+    // the machine's last update is saved with its state when we hibernate,
+    // and handled once it resumes.
+    private void updateHibernation() {
+        if (!Settings.hibernationEnabled) return;
+
+        final long now = worldObj.getTotalWorldTime();
+        final boolean running = machine.isRunning();
+        final double cpuTime = machine.cpuTime();
+        if (activeAt < 0 || running != lastRunning ||
+                (running && (cpuTime != lastCpuTime || machine.isPaused()))) {
+            activeAt = now;
+        }
+        lastRunning = running;
+        lastCpuTime = cpuTime;
+
+        if (now - activeAt >= Settings.hibernationIdleSeconds * 20L && canHibernate()) {
+            hibernate();
+        }
+    }
+
+    private boolean canHibernate() {
+        if (bootPending || bootStart || hydratedSlots < inventory.length) return false;
+        for (ManagedEnvironment environment : components) {
+            if (environment != null && isVolatile(environment)) return false;
+        }
+        return true;
+    }
+
+    private void hibernate() {
+        final Node node = machine.node();
+        final String address = node.address();
+
+        // Save components to their stacks first, as usual.
+        for (int slot = 0; slot < components.length; ++slot) {
+            final ManagedEnvironment environment = components[slot];
+            final Item driver = drivers[slot];
+            if (environment != null && driver != null && inventory[slot] != null) {
+                environment.save(driver.dataTag(inventory[slot]));
+                stackCopies[slot] = null;
+            }
+        }
+        final NBTTagCompound state = new NBTTagCompound();
+        machine.save(state);
+
+        // With the state store we don't even have to keep the state around.
+        final boolean stateKept = !Settings.stateStore;
+        savedMachine = stateKept ? state : null;
+        savedMachinePersisted = !stateKept;
+        stateInStore = !stateKept;
+        if (!stateKept) {
+            assignStateId();
+            savedMachineChecksum = MachineStateStore.INSTANCE.save(worldObj.provider.dimensionId, stateId, state);
+        }
+        hibernatedBytes = Hibernation.estimate(state, stateKept);
+
+        // Removing the machine's node disconnects all components, see
+        // onDisconnect. The machine stops when losing its node, which is
+        // fine, since we have its state.
+        node.remove();
+        for (int slot = 0; slot < components.length; ++slot) {
+            if (components[slot] != null) {
+                removeUpdatingComponent(slot);
+                components[slot] = null;
+                drivers[slot] = null;
+                componentHosts[slot] = null;
+                indexComponent(slot);
+            }
+        }
+        machine = null;
+        hydratedSlots = 0;
+        Arrays.fill(savedStacks, null);
+        dirty = false;
+
+        // Put the stub in the machine's place. Nodes keep their address when
+        // loaded, which is how it gets the machine's.
+        hibernated = true;
+        wakeRequested = false;
+        wakeTime = Settings.hibernationWakeSeconds > 0 ?
+                worldObj.getTotalWorldTime() + Settings.hibernationWakeSeconds * 20L :
+                Long.MAX_VALUE;
+        stubNode = Network.newNode(this, Visibility.Network).create();
+        final NBTTagCompound stubNbt = new NBTTagCompound();
+        stubNbt.setString("address", address);
+        stubNode.load(stubNbt);
+        joinSurroundings();
+
+        // Have the chunk saved with the state we went into hibernation with.
+        worldObj.markTileEntityChunkModified(xCoord, yCoord, zCoord, this);
+        Hibernation.INSTANCE.onHibernate(hibernatedBytes);
+    }
+
+    private void resume() {
+        // Leave while still hibernating, so we ignore the stub's disconnect.
+        // If we were unloaded or removed the stub is gone already, and
+        // releaseStub did the bookkeeping.
+        if (stubNode != null) {
+            stubNode.remove();
+            stubNode = null;
+            Hibernation.INSTANCE.onResume(hibernatedBytes);
+            hibernatedBytes = 0;
+        }
+        hibernated = false;
+        activeAt = -1;
+
+        // From here on it's the same as being loaded from the chunk, except
+        // that all we have to load is the machine. It waits for its turn in
+        // the boot queue, and its components are created before its first
+        // update, as it joins the network around it, see joinNetwork.
+        final NBTTagCompound state = stateInStore ?
+                MachineStateStore.INSTANCE.load(worldObj.provider.dimensionId, stateId, savedMachineChecksum) :
+                savedMachine;
+        stateInStore = false;
+        machine = li.cil.oc.api.Machine.create(this);
+        machine.load(state);
+        Network.joinNewNetwork(machine.node());
+        addedToNetwork = false;
+        resumeChecked = false;
+        dirty = true;
+
+        // Now that the machine is back, it can handle what was sent to it.
+        wakeRequested = false;
+        if (pendingMessages != null) {
+            final List<Message> messages = pendingMessages;
+            pendingMessages = null;
+            for (Message message : messages) {
+                machine.onMessage(message);
+            }
+        }
+    }
+
+    // Unloaded or removed while hibernating. The state was saved when going
+    // into hibernation, so all that's left to do is to remove the stub;
+    // messages that arrived since are lost, as they would be for a machine
+    // being unloaded.
+    private void releaseStub() {
+        if (stubNode != null) {
+            stubNode.remove();
+            stubNode = null;
+            pendingMessages = null;
+            Hibernation.INSTANCE.onGone(hibernatedBytes);
+            hibernatedBytes = 0;
+        }
     }
 
     // ----------------------------------------------------------------------- //
@@ -138,64 +765,197 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
 
     @Override
     public void readFromNBT(NBTTagCompound nbt) {
+        final long start = Settings.instrumentationEnabled ? System.nanoTime() : 0;
+        final boolean tracing = MachineTracer.active;
+        if (tracing) {
+            MachineTracer.INSTANCE.begin(this, MachineTracer.LOAD);
+        }
+
         super.readFromNBT(nbt);
 
         // Load items first, so that the machine can access them when loading.
         final NBTTagList itemsNbt = nbt.getTagList("items", Constants.NBT.TAG_COMPOUND);
-        for (int i = 0; i < Math.min(inventory.length, itemsNbt.tagCount()); ++i) {
+        ensureSlots(itemsNbt.tagCount());
+        for (int i = 0; i < itemsNbt.tagCount(); ++i) {
             // Inventory loading.
             final NBTTagCompound stackNbt = itemsNbt.getCompoundTagAt(i);
             final ItemStack stack = ItemStack.loadItemStackFromNBT(stackNbt);
+            PayloadInterner.INSTANCE.intern(stack);
             inventory[i] = stack;
+            stackCopies[i] = null;
 
-            // Create components, but don't connect them yet. They will be once
-            // the machine gets connected (see onConnect).
-            final Item driver = Driver.driverFor(stack, getClass());
-            if (stack != null && driver != null) {
-                final ManagedEnvironment environment = driver.createEnvironment(stack, this);
-                if (environment != null) {
-                    environment.load(driver.dataTag(stack));
-                }
-                components[i] = environment;
-                if (environment != null && environment.canUpdate()) {
-                    updatingComponents.add(environment);
-                }
-            }
+            // Components are not created here, but right before our first
+            // update (see hydrateComponents). Their state stays in the stack's
+            // data tag until then, which is also what we save if we get
+            // unloaded before that.
         }
+        hydratedSlots = 0;
+        cacheChecked = false;
+        resumeChecked = false;
 
         // Load the machine *after* the items, so that it can use them if necessary.
-        machine().load(nbt.getCompoundTag("machine"));
+        // If the state was stored separately it may still be in the process
+        // of being written, which the persistence takes care of for us.
+        if (nbt.hasKey("machineStore")) {
+            final NBTTagCompound reference = nbt.getCompoundTag("machineStore");
+            stateId = reference.getLong("id");
+            machine().load(MachineStateStore.INSTANCE.load(reference.getInteger("dimension"), stateId, reference.getInteger("checksum")));
+
+            // We're a copy of a machine that is still around, so we get an
+            // id of our own with our next save.
+            if (!MachineStateStore.INSTANCE.claim(stateId, this)) {
+                stateId = 0;
+            }
+        }
+        else if (nbt.hasKey("machineFile")) {
+            machine().load(MachineStatePersistence.INSTANCE.load(nbt.getString("machineFile")));
+        }
+        else {
+            machine().load(nbt.getCompoundTag("machine"));
+        }
+
+        dirty = true;
+
+        if (Settings.instrumentationEnabled) {
+            stats().recordLoad(System.nanoTime() - start);
+        }
+        if (tracing) {
+            MachineTracer.INSTANCE.end(this, MachineTracer.LOAD);
+        }
     }
 
     @Override
     public void writeToNBT(NBTTagCompound nbt) {
+        final long start = Settings.instrumentationEnabled ? System.nanoTime() : 0;
+        final boolean tracing = MachineTracer.active;
+        if (tracing) {
+            MachineTracer.INSTANCE.begin(this, MachineTracer.SAVE);
+        }
+
         super.writeToNBT(nbt);
 
+        // The state we went into hibernation with is as current as it gets.
+        if (dirty && !hibernated) {
+            dirty = false;
+            Arrays.fill(savedStacks, null);
+            savedMachine = null;
+        }
+
+        // The payloads our saved stacks refer to, see PayloadInterner.track.
+        final Set<String> payloads = Settings.payloadInterning ? new HashSet<String>() : Collections.<String>emptySet();
         final NBTTagList itemsNbt = new NBTTagList();
         for (int i = 0; i < inventory.length; ++i) {
             final ItemStack stack = inventory[i];
-
-            // Save components to items, first, so the info gets saved with the items.
             final ManagedEnvironment environment = components[i];
-            final Item driver = Driver.driverFor(stack, getClass());
-            if (stack != null && environment != null && driver != null) {
-                environment.save(driver.dataTag(stack));
-            }
 
-            // Inventory saving.
-            final NBTTagCompound stackNbt = new NBTTagCompound();
-            if (stack != null) {
-                stack.writeToNBT(stackNbt);
+            // Components that update themselves, or that can be reached by
+            // other machines in the network, may change at any time, so we
+            // always have to save those.
+            if (savedStacks[i] == null || (environment != null && isVolatile(environment))) {
+                // Save components to items, first, so the info gets saved with the items.
+                final Item driver = drivers[i];
+                if (stack != null && environment != null && driver != null) {
+                    environment.save(driver.dataTag(stack));
+                    stackCopies[i] = null;
+                }
+
+                // Inventory saving. The stack shares its tag with the written
+                // NBT, and the next component save would modify it in place,
+                // so keep a copy around for reuse. Shared payloads are only
+                // referenced in the copy.
+                final NBTTagCompound stackNbt = new NBTTagCompound();
+                if (stack != null) {
+                    stack.writeToNBT(stackNbt);
+                }
+                savedStacks[i] = PayloadInterner.INSTANCE.isEligible(stack)
+                        ? PayloadInterner.INSTANCE.externalize(stackNbt)
+                        : (NBTTagCompound) stackNbt.copy();
             }
-            itemsNbt.appendTag(stackNbt);
+            if (Settings.payloadInterning) {
+                PayloadInterner.INSTANCE.collect(savedStacks[i], payloads);
+            }
+            itemsNbt.appendTag(savedStacks[i]);
         }
         nbt.setTag("items", itemsNbt);
+        if (worldObj != null && !worldObj.isRemote) {
+            PayloadInterner.INSTANCE.track(worldObj.provider.dimensionId, xCoord, yCoord, zCoord, clusterIndex, payloads);
+        }
 
         // Machine could be saved before the components... I think. But let's
-        // keep it consistent with the loading code.
-        final NBTTagCompound machineNbt = new NBTTagCompound();
-        machine().save(machineNbt);
-        nbt.setTag("machine", machineNbt);
+        // keep it consistent with the loading code. While hibernating with
+        // our state in the store there's nothing to save, only the reference
+        // to write; asking for the machine would wake it up mid-save.
+        if (savedMachine == null && !stateInStore) {
+            savedMachine = new NBTTagCompound();
+            savedMachinePersisted = false;
+            machine().save(savedMachine);
+        }
+
+        // When persisting separately, only a reference to the state goes into
+        // the chunk. The saved tag is never modified after this, so it can
+        // safely be written by a background thread.
+        if ((Settings.stateStore || stateInStore) && worldObj != null) {
+            final int dimension = worldObj.provider.dimensionId;
+            assignStateId();
+            if (!savedMachinePersisted) {
+                savedMachinePersisted = true;
+                savedMachineChecksum = MachineStateStore.INSTANCE.save(dimension, stateId, savedMachine);
+            }
+            final NBTTagCompound reference = new NBTTagCompound();
+            reference.setInteger("dimension", dimension);
+            reference.setLong("id", stateId);
+            reference.setInteger("checksum", savedMachineChecksum);
+            nbt.setTag("machineStore", reference);
+        }
+        else if (Settings.asyncPersistence && worldObj != null) {
+            final String file = MachineStatePersistence.stateFile(worldObj.provider.dimensionId, xCoord, yCoord, zCoord, clusterIndex);
+            if (!savedMachinePersisted) {
+                savedMachinePersisted = true;
+                MachineStatePersistence.INSTANCE.save(file, savedMachine);
+            }
+            nbt.setString("machineFile", file);
+        }
+        else {
+            nbt.setTag("machine", savedMachine);
+        }
+
+        if (Settings.instrumentationEnabled) {
+            stats().recordSave(System.nanoTime() - start);
+        }
+        if (tracing) {
+            MachineTracer.INSTANCE.end(this, MachineTracer.SAVE);
+        }
+    }
+
+    private static boolean isVolatile(ManagedEnvironment environment) {
+        return environment.canUpdate() || (environment.node() != null && environment.node().reachability() == Visibility.Network);
+    }
+
+    private void assignStateId() {
+        if (stateId == 0) {
+            stateId = MachineStateStore.newId();
+            MachineStateStore.INSTANCE.claim(stateId, this);
+        }
+    }
+
+    // Lets go of the id our state is kept under in the state store, if it
+    // is. If we're gone, the store drops the state unless it's picked up
+    // again before the next world save.
+    private void releaseStateId(boolean gone) {
+        if (worldObj == null || stateId == 0) return;
+        MachineStateStore.INSTANCE.release(worldObj.provider.dimensionId, stateId, this, gone);
+    }
+
+    // We're gone, so is our state file, if we use one, unless it's loaded
+    // again before the next world save, and so are our references to shared
+    // payloads.
+    private void discardSavedState() {
+        if (worldObj == null) return;
+        final int dimension = worldObj.provider.dimensionId;
+        if (Settings.asyncPersistence) {
+            MachineStatePersistence.INSTANCE.discard(MachineStatePersistence.stateFile(dimension, xCoord, yCoord, zCoord, clusterIndex));
+        }
+        PayloadInterner.INSTANCE.untrack(dimension, xCoord, yCoord, zCoord, clusterIndex);
     }
 
     // ----------------------------------------------------------------------- //
@@ -207,25 +967,59 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
 
     @Override
     public int getSizeInventory() {
-        return 1;
+        return inventory.length;
     }
 
+    // Returns a copy of the stack in the slot. The copy is reused until the
+    // slot changes, so callers must not modify it; we do notice changes to
+    // its item, size, damage or tag, as well as changes to the tag of our
+    // stack, in which case we hand out a fresh copy.
     @Override
     public ItemStack getStackInSlot(int slot) {
-        return slot >= 0 && slot < getSizeInventory() && inventory[slot] != null
-                ? inventory[slot].copy()
-                : null;
+        if (slot < 0 || slot >= getSizeInventory()) return null;
+        final ItemStack stack = inventory[slot];
+        if (stack == null) return null;
+
+        ItemStack copy = stackCopies[slot];
+        if (copy == null ||
+                copy.getItem() != stack.getItem() ||
+                copy.stackSize != stack.stackSize ||
+                copy.getItemDamage() != stack.getItemDamage() ||
+                stackCopyTags[slot] != stack.stackTagCompound ||
+                !ItemStack.areItemStackTagsEqual(copy, stack)) {
+            copy = stack.copy();
+            stackCopies[slot] = copy;
+            stackCopyTags[slot] = stack.stackTagCompound;
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the actual stack in the slot, without copying it. For callers
+     * that only read from it; modifying it bypasses change tracking and may
+     * corrupt the state of the component in that slot.
+     */
+    public ItemStack peekStackInSlot(int slot) {
+        return slot >= 0 && slot < getSizeInventory() ? inventory[slot] : null;
     }
 
     @Override
     public void setInventorySlotContents(int slot, ItemStack stack) {
         if (slot >= 0 && slot < getSizeInventory()) {
-            if (inventory[slot] != null) {
-                onItemRemoved(slot, inventory[slot] = null);
+            if (hibernated) {
+                resume();
+            }
+            stackCopies[slot] = null;
+            final ItemStack oldStack = inventory[slot];
+            if (oldStack != null) {
+                // Pass the old stack, the component saves its state into it.
+                inventory[slot] = null;
+                onItemRemoved(slot, oldStack);
             }
             if (stack != null) {
                 final ItemStack newStack = stack.copy();
-                inventory[0] = newStack;
+                PayloadInterner.INSTANCE.intern(newStack);
+                inventory[slot] = newStack;
                 onItemAdded(slot, newStack);
             }
         }
@@ -236,6 +1030,10 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
         if (slot >= 0 && slot < getSizeInventory()) {
             final ItemStack stack = inventory[slot];
             if (stack != null) {
+                if (hibernated) {
+                    resume();
+                }
+                stackCopies[slot] = null;
                 final int removed = Math.min(stack.stackSize, amount);
                 stack.stackSize -= removed;
                 if (stack.stackSize < 1) {
@@ -274,7 +1072,15 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
 
     @Override
     public boolean isUseableByPlayer(EntityPlayer player) {
-        return player.getDistanceSq(xCoord + 0.5, yCoord + 0.5, zCoord + 0.5) <= 64;
+        return isInRange(player, 8);
+    }
+
+    /**
+     * Whether the player is within the specified distance of the machine,
+     * in blocks.
+     */
+    public boolean isInRange(EntityPlayer player, double range) {
+        return player.getDistanceSq(xCoord + 0.5, yCoord + 0.5, zCoord + 0.5) <= range * range;
     }
 
     @Override
@@ -287,37 +1093,78 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
 
     @Override
     public boolean isItemValidForSlot(int slot, ItemStack stack) {
-        return slot == 0 && Items.get(stack) == Items.get("eeprom");
+        // Any item we have a driver for can go into any slot.
+        return slot >= 0 && slot < getSizeInventory() && Driver.driverFor(stack, getClass()) != null;
+    }
+
+    // Automation (hoppers, pipes and the like) only gets to swap the EEPROM,
+    // like players do with a sneak-click (see BlockMachine). Everything
+    // else, such as the CPU, stays in place until the block is broken. The
+    // slots themselves are still there for players and component lookups.
+
+    private static final int EEPROM_SLOT = 0;
+    private static final int[] ACCESSIBLE_SLOTS = new int[]{EEPROM_SLOT};
+
+    @Override
+    public int[] getAccessibleSlotsFromSide(int side) {
+        return ACCESSIBLE_SLOTS;
+    }
+
+    @Override
+    public boolean canInsertItem(int slot, ItemStack stack, int side) {
+        return slot == EEPROM_SLOT && stack != null && Items.get(stack) == Items.get("eeprom");
+    }
+
+    @Override
+    public boolean canExtractItem(int slot, ItemStack stack, int side) {
+        return slot == EEPROM_SLOT;
     }
 
     // ----------------------------------------------------------------------- //
 
     // This is what's required of classes "hosting" a machine. The methods
     // should all be fairly self-explanatory, otherwise check their Javadoc.
+    // Components reattached from the cache may still talk to us as their
+    // host, so once we have a successor, we forward everything to it.
 
     @Override
     public Machine machine() {
+        if (successor != null) {
+            return successor.machine();
+        }
+        // Whoever asks for a hibernating machine wants it back.
+        if (hibernated) {
+            resume();
+        }
         if (machine == null) {
             machine = li.cil.oc.api.Machine.create(this);
         }
         return machine;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Returns the machine without creating it or waking it from hibernation,
+     * i.e. null if there is none at the moment. For looking at its state.
+     */
+    public Machine peekMachine() {
+        return machine;
+    }
+
     @Override
     public Iterable<ItemStack> internalComponents() {
-        return Arrays.asList(inventory);
+        if (successor != null) {
+            return successor.internalComponents();
+        }
+        return inventoryView;
     }
 
     @Override
     public int componentSlot(String address) {
-        for (int i = 0; i < components.length; ++i) {
-            final ManagedEnvironment environment = components[i];
-            if (environment != null && environment.node() != null && Objects.equals(environment.node().address(), address)) {
-                return i;
-            }
+        if (successor != null) {
+            return successor.componentSlot(address);
         }
-        return -1;
+        final Integer slot = componentSlots.get(address);
+        return slot != null ? slot : -1;
     }
 
     @Override
@@ -325,12 +1172,20 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
         // This is called when the machine's `onConnect` is called. It allows
         // hooking into that event from a machine's host, so that the host can
         // directly expose the machine's node as its own (as we're doing here).
+        if (successor != null) {
+            successor.onMachineConnect(node);
+            return;
+        }
         this.onConnect(node);
     }
 
     @Override
     public void onMachineDisconnect(Node node) {
         // Same as for `onMachineConnect`.
+        if (successor != null) {
+            successor.onMachineDisconnect(node);
+            return;
+        }
         this.onDisconnect(node);
     }
 
@@ -344,21 +1199,33 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
 
     @Override
     public World world() {
+        if (successor != null) {
+            return successor.world();
+        }
         return worldObj;
     }
 
     @Override
     public double xPosition() {
+        if (successor != null) {
+            return successor.xPosition();
+        }
         return xCoord + 0.5;
     }
 
     @Override
     public double yPosition() {
+        if (successor != null) {
+            return successor.yPosition();
+        }
         return yCoord + 0.5;
     }
 
     @Override
     public double zPosition() {
+        if (successor != null) {
+            return successor.zPosition();
+        }
         return zCoord + 0.5;
     }
 
@@ -368,9 +1235,73 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
         // "run state", but actual internal state, to let the owner know that
         // it needs saving when the world next saves. For entities this is
         // mostly irrelevant, because they're always saved, anyway.
-        if (worldObj != null) {
-            worldObj.markTileEntityChunkModified(xCoord, yCoord, zCoord, this);
+        // We don't mark the chunk right away, but in our next update, since
+        // the machine may call this many times per tick.
+        if (successor != null) {
+            successor.markChanged();
+            return;
+        }
+        dirty = true;
+        chunkModified = true;
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    // Creating components is not free, some allocate quite a bit of memory,
+    // and connecting them to the network may have to merge networks. When a
+    // whole area of machines gets loaded at once, doing this for all of them
+    // in the same tick causes a noticeable lag spike. So we do it as late as
+    // possible, right before the machine's first update, and only for a
+    // limited number of components per tick across all machines. Machines
+    // that could not create all of their components yet simply try again in
+    // the next tick. Components still parked in the cache from when we were
+    // last unloaded are reattached instead, which does not count against
+    // that limit.
+
+    private boolean hydrateComponents() {
+        if (!cacheChecked) {
+            cacheChecked = true;
+            if (Settings.componentCacheEnabled) {
+                cachedComponents = ComponentCache.INSTANCE.take(this);
+            }
         }
+
+        while (hydratedSlots < inventory.length) {
+            final int slot = hydratedSlots;
+            if (inventory[slot] != null && components[slot] == null) {
+                if (!reattachComponent(slot, inventory[slot])) {
+                    if (!MachineScheduler.INSTANCE.tryHydrate()) {
+                        return false;
+                    }
+                    createComponent(slot, inventory[slot]);
+                }
+                if (components[slot] != null) {
+                    machine().node().connect(components[slot].node());
+                    indexComponent(slot);
+                }
+            }
+            ++hydratedSlots;
+        }
+        cachedComponents = null;
+        return true;
+    }
+
+    private boolean reattachComponent(int slot, ItemStack stack) {
+        if (cachedComponents == null) return false;
+
+        final ManagedEnvironment environment = cachedComponents.take(slot, stack);
+        if (environment == null) return false;
+
+        final TileEntityMachine host = cachedComponents.host(slot);
+        host.successor = this;
+        componentHosts[slot] = host;
+        components[slot] = environment;
+        drivers[slot] = cachedComponents.driver(slot);
+        if (environment.canUpdate()) {
+            addUpdatingComponent(slot);
+        }
+        indexComponent(slot);
+        return true;
     }
 
     // ----------------------------------------------------------------------- //
@@ -389,19 +1320,24 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
         // You don't have to pass the host class here, but it's the preferred
         // way, since that allows for component blacklisting by host.
         final Item driver = Driver.driverFor(stack, getClass());
+        drivers[slot] = driver;
         if (driver != null) {
             final ManagedEnvironment environment = driver.createEnvironment(stack, this);
             if (environment != null) {
                 environment.load(driver.dataTag(stack));
+                // Getting the data tag may have added it to the stack.
+                stackCopies[slot] = null;
                 components[slot] = environment;
                 if (components[slot].canUpdate()) {
-                    updatingComponents.add(components[slot]);
+                    addUpdatingComponent(slot);
                 }
+                indexComponent(slot);
             }
         }
     }
 
     private void onItemAdded(int slot, ItemStack stack) {
+        savedStacks[slot] = null;
         createComponent(slot, stack);
         if (components[slot] != null) {
             // Connect it to the network, allowing it to be used. Internal
@@ -409,10 +1345,12 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
             // machine, since some are set to neighbor visibility (such as
             // graphics cards / cards in general), and won't work otherwise.
             machine().node().connect(components[slot].node());
+            indexComponent(slot);
         }
     }
 
     private void onItemRemoved(int slot, ItemStack stack) {
+        savedStacks[slot] = null;
         final ManagedEnvironment environment = components[slot];
         if (environment != null) {
             if (environment.node() != null) {
@@ -424,7 +1362,7 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
 
             // Get the driver to get the data tag; this should always be
             // non-null, otherwise we wouldn't have an environment, but...
-            final Item driver = Driver.driverFor(stack, getClass());
+            final Item driver = drivers[slot];
             if (driver != null) {
                 environment.save(driver.dataTag(stack));
             }
@@ -437,8 +1375,84 @@ public class TileEntityMachine extends TileEntityEnvironment implements IInvento
                 environment.node().remove();
             }
 
+            removeUpdatingComponent(slot);
             components[slot] = null;
-            updatingComponents.remove(environment);
+            drivers[slot] = null;
+            componentHosts[slot] = null;
+            indexComponent(slot);
+        }
+    }
+
+    private void addUpdatingComponent(int slot) {
+        if (updatingComponentIndices[slot] >= 0) return;
+        final int index = updatingComponentCount++;
+        updatingComponents[index] = components[slot];
+        updatingComponentSlots[index] = slot;
+        updatingComponentThreadSafe[index] = ParallelUpdater.isThreadSafe(components[slot]);
+        updatingComponentIndices[slot] = index;
+    }
+
+    private void removeUpdatingComponent(int slot) {
+        final int index = updatingComponentIndices[slot];
+        if (index < 0) return;
+
+        // Move the last entry into the freed spot.
+        final int last = --updatingComponentCount;
+        updatingComponents[index] = updatingComponents[last];
+        updatingComponentSlots[index] = updatingComponentSlots[last];
+        updatingComponentThreadSafe[index] = updatingComponentThreadSafe[last];
+        updatingComponentIndices[updatingComponentSlots[index]] = index;
+        updatingComponents[last] = null;
+        updatingComponentIndices[slot] = -1;
+    }
+
+    // Grows all per-slot state to the specified number of slots, if we have
+    // fewer than that. Used when loading machines saved with more slots than
+    // we currently default to, so no items get lost, and for profiles with
+    // more slots than that.
+    private void ensureSlots(int count) {
+        if (count <= inventory.length) return;
+
+        final int oldCount = inventory.length;
+        inventory = Arrays.copyOf(inventory, count);
+        components = Arrays.copyOf(components, count);
+        updatingComponents = Arrays.copyOf(updatingComponents, count);
+        updatingComponentSlots = Arrays.copyOf(updatingComponentSlots, count);
+        updatingComponentThreadSafe = Arrays.copyOf(updatingComponentThreadSafe, count);
+        updatingComponentIndices = Arrays.copyOf(updatingComponentIndices, count);
+        Arrays.fill(updatingComponentIndices, oldCount, count, -1);
+        componentAddresses = Arrays.copyOf(componentAddresses, count);
+        drivers = Arrays.copyOf(drivers, count);
+        componentHosts = Arrays.copyOf(componentHosts, count);
+        savedStacks = Arrays.copyOf(savedStacks, count);
+        stackCopies = Arrays.copyOf(stackCopies, count);
+        stackCopyTags = Arrays.copyOf(stackCopyTags, count);
+        inventoryView = readOnlyView(inventory);
+    }
+
+    private static List<ItemStack> readOnlyView(ItemStack[] stacks) {
+        return Collections.unmodifiableList(Arrays.asList(stacks));
+    }
+
+    private static int[] newIndexArray(int length) {
+        final int[] indices = new int[length];
+        Arrays.fill(indices, -1);
+        return indices;
+    }
+
+    // Updates the address lookup for the specified slot to match the
+    // component currently in it (if any).
+    private void indexComponent(int slot) {
+        final String oldAddress = componentAddresses[slot];
+        if (oldAddress != null) {
+            componentSlots.remove(oldAddress);
+        }
+
+        final ManagedEnvironment environment = components[slot];
+        final String address = environment != null && environment.node() != null ? environment.node().address() : null;
+        componentAddresses[slot] = address;
+        if (address != null) {
+            componentSlots.put(address, slot);
         }
     }
 }
@@ -0,0 +1,348 @@
+package li.cil.oc.example.machine.sim;
+
+import com.google.gson.stream.JsonWriter;
+import li.cil.oc.example.machine.BootQueue;
+import li.cil.oc.example.machine.MachineScheduler;
+import li.cil.oc.example.machine.Settings;
+import li.cil.oc.example.machine.TileEntityMachine;
+import li.cil.oc.example.machine.standin.StandIns;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Headless load test of the machine host. For each machine count, creates
+ * that many machines and drives them through their whole life cycle, using
+ * the stand-ins of the benchmark source set instead of OC and Minecraft:
+ * <ol>
+ * <li>placement and connecting to the network,</li>
+ * <li>settling, i.e. ticking until all components were created and all
+ * machines were admitted by the boot queue,</li>
+ * <li>steady ticking with some inventory churn,</li>
+ * <li>saving, chunk unload and loading everything again.</li>
+ * </ol>
+ * Reports tick time percentiles, allocation rate and heap use per machine
+ * count, on stdout and as JSON.
+ * <p/>
+ * Arguments: {@code --sizes 10,100,1000,10000 --ticks 400 --out report.json
+ * [--direct]}. With --direct the scheduler, dormancy and boot queue are
+ * disabled, otherwise they are enabled.
+ */
+public final class ScaleSimulator {
+    // Maximum number of ticks to wait for machines to settle.
+    private static final int MAX_SETTLE_TICKS = 20000;
+
+    // For converting the allocation per tick time to a rate.
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final int ticks;
+
+    private ScaleSimulator(int ticks) {
+        this.ticks = ticks;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {10, 100, 1000, 10000};
+        int ticks = 400;
+        File out = new File("build/reports/simulator/report.json");
+        boolean direct = false;
+        for (int i = 0; i < args.length; ++i) {
+            if ("--sizes".equals(args[i])) {
+                final String[] parts = args[++i].split(",");
+                sizes = new int[parts.length];
+                for (int j = 0; j < parts.length; ++j) {
+                    sizes[j] = Integer.parseInt(parts[j].trim());
+                }
+            }
+            else if ("--ticks".equals(args[i])) {
+                ticks = Integer.parseInt(args[++i]);
+            }
+            else if ("--out".equals(args[i])) {
+                out = new File(args[++i]);
+            }
+            else if ("--direct".equals(args[i])) {
+                direct = true;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        StandIns.install();
+        // There's no world save directory, and we measure the host, not
+        // the compression of machine state.
+        Settings.asyncPersistence = false;
+        Settings.instrumentationEnabled = false;
+        if (direct) {
+            StandIns.configureDirect();
+        }
+        else {
+            Settings.schedulerEnabled = true;
+            Settings.dormancyEnabled = true;
+            Settings.bootQueueEnabled = true;
+        }
+
+        final ScaleSimulator simulator = new ScaleSimulator(ticks);
+        final List<Result> results = new ArrayList<Result>();
+        for (int size : sizes) {
+            final Result result = simulator.run(size);
+            System.out.println(result);
+            results.add(result);
+        }
+
+        final File parent = out.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed creating report directory " + parent);
+        }
+        writeReport(out, direct, ticks, results);
+        System.out.println("Report written to " + out.getPath());
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private Result run(int count) {
+        final Result result = new Result(count);
+        final long heapBefore = usedHeap();
+
+        // Placement: create machines and put an EEPROM in, like a player would.
+        final List<TileEntityMachine> machines = new ArrayList<TileEntityMachine>(count);
+        for (int i = 0; i < count; ++i) {
+            final TileEntityMachine machine = newMachine(i);
+            machine.setInventorySlotContents(0, StandIns.stack("eeprom"));
+            machines.add(machine);
+        }
+
+        // First update connects the machines to the network.
+        long start = System.nanoTime();
+        tick(machines);
+        result.connectNanos = System.nanoTime() - start;
+
+        for (TileEntityMachine machine : machines) {
+            machine.start();
+        }
+        result.settleTicks = settle(machines);
+
+        result.heapBytes = usedHeap() - heapBefore;
+
+        // Steady state, with one in a hundred machines swapping a component
+        // in each tick, round robin.
+        final long[] tickNanos = new long[ticks];
+        final int churnPerTick = Math.max(1, count / 100);
+        final int churnSlot = 2;
+        int churnIndex = 0;
+        final long allocatedBefore = allocatedBytes();
+        for (int t = 0; t < ticks; ++t) {
+            start = System.nanoTime();
+            for (int i = 0; i < churnPerTick; ++i) {
+                final TileEntityMachine machine = machines.get(churnIndex);
+                churnIndex = (churnIndex + 1) % count;
+                // The actual stack, like a player taking it out gets:
+                // removing it saves the component's state into it.
+                final ItemStack stack = machine.peekStackInSlot(churnSlot);
+                machine.setInventorySlotContents(churnSlot, null);
+                machine.setInventorySlotContents(churnSlot, stack);
+            }
+            tick(machines);
+            tickNanos[t] = System.nanoTime() - start;
+            result.maxDeferred = Math.max(result.maxDeferred, MachineScheduler.INSTANCE.lastDeferred());
+        }
+        final long allocated = allocatedBytes() - allocatedBefore;
+        result.setTickTimes(tickNanos);
+        if (allocatedBefore >= 0) {
+            result.allocatedBytesPerTick = allocated / ticks;
+            result.allocationBytesPerSecond = allocated * NANOS_PER_SECOND / Math.max(1, result.tickNanosTotal);
+        }
+
+        // Save everything, as on world save, then unload and load again.
+        final List<NBTTagCompound> saved = new ArrayList<NBTTagCompound>(count);
+        start = System.nanoTime();
+        for (TileEntityMachine machine : machines) {
+            final NBTTagCompound nbt = new NBTTagCompound();
+            machine.writeToNBT(nbt);
+            saved.add(nbt);
+        }
+        result.saveNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (TileEntityMachine machine : machines) {
+            machine.onChunkUnload();
+        }
+        result.unloadNanos = System.nanoTime() - start;
+        machines.clear();
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            final TileEntityMachine machine = newMachine(i);
+            machine.readFromNBT(saved.get(i));
+            machines.add(machine);
+        }
+        tick(machines);
+        result.loadNanos = System.nanoTime() - start;
+        result.reloadSettleTicks = settle(machines);
+
+        for (TileEntityMachine machine : machines) {
+            machine.onChunkUnload();
+        }
+        MachineScheduler.INSTANCE.clear();
+        BootQueue.INSTANCE.clear();
+        return result;
+    }
+
+    private static TileEntityMachine newMachine(int index) {
+        return StandIns.newMachine((index % 256) * 2, 64, (index / 256) * 2);
+    }
+
+    private static void tick(List<TileEntityMachine> machines) {
+        StandIns.startTick();
+        for (TileEntityMachine machine : machines) {
+            machine.updateEntity();
+        }
+        StandIns.endTick();
+    }
+
+    private int settle(List<TileEntityMachine> machines) {
+        for (int t = 0; t < MAX_SETTLE_TICKS; ++t) {
+            if (isSettled(machines)) return t;
+            tick(machines);
+        }
+        return -1;
+    }
+
+    private static boolean isSettled(List<TileEntityMachine> machines) {
+        for (TileEntityMachine machine : machines) {
+            if (!machine.machine().isRunning()) return false;
+            int expected = 0;
+            for (int slot = 0; slot < machine.getSizeInventory(); ++slot) {
+                if (machine.peekStackInSlot(slot) != null) ++expected;
+            }
+            if (machine.machine().componentCount() < expected) return false;
+        }
+        return true;
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long usedHeap() {
+        // Several passes, since one collection does not reliably collect
+        // everything that's unreachable.
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void writeReport(File file, boolean direct, int ticks, List<Result> results) throws IOException {
+        final JsonWriter json = new JsonWriter(new FileWriter(file));
+        try {
+            json.setIndent("  ");
+            json.beginObject();
+            json.name("ticks").value(ticks);
+            json.name("settings").beginObject();
+            json.name("direct").value(direct);
+            json.name("slotCount").value(Settings.slotCount);
+            json.name("schedulerEnabled").value(Settings.schedulerEnabled);
+            json.name("schedulerBudget").value(Settings.schedulerBudget);
+            json.name("dormancyEnabled").value(Settings.dormancyEnabled);
+            json.name("bootQueueEnabled").value(Settings.bootQueueEnabled);
+            json.name("hydrationPerTick").value(Settings.hydrationPerTick);
+            json.endObject();
+            json.name("runs").beginArray();
+            for (Result result : results) {
+                result.write(json);
+            }
+            json.endArray();
+            json.endObject();
+        }
+        finally {
+            json.close();
+        }
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private static final class Result {
+        final int machines;
+        long connectNanos;
+        int settleTicks;
+        int reloadSettleTicks;
+        long heapBytes;
+        long tickNanosTotal;
+        long tickP50, tickP90, tickP99, tickMax;
+        int maxDeferred;
+        long allocatedBytesPerTick = -1;
+        double allocationBytesPerSecond = -1;
+        long saveNanos;
+        long unloadNanos;
+        long loadNanos;
+
+        Result(int machines) {
+            this.machines = machines;
+        }
+
+        void setTickTimes(long[] nanos) {
+            final long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            for (long value : sorted) {
+                tickNanosTotal += value;
+            }
+            tickP50 = percentile(sorted, 0.5);
+            tickP90 = percentile(sorted, 0.9);
+            tickP99 = percentile(sorted, 0.99);
+            tickMax = sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            final int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+
+        void write(JsonWriter json) throws IOException {
+            json.beginObject();
+            json.name("machines").value(machines);
+            json.name("connectMicros").value(connectNanos / 1000);
+            json.name("settleTicks").value(settleTicks);
+            json.name("tickMicros").beginObject();
+            json.name("p50").value(tickP50 / 1000);
+            json.name("p90").value(tickP90 / 1000);
+            json.name("p99").value(tickP99 / 1000);
+            json.name("max").value(tickMax / 1000);
+            json.endObject();
+            json.name("maxDeferred").value(maxDeferred);
+            json.name("allocatedBytesPerTick").value(allocatedBytesPerTick);
+            json.name("allocationBytesPerSecond").value((long) allocationBytesPerSecond);
+            json.name("heapBytes").value(heapBytes);
+            json.name("heapBytesPerMachine").value(heapBytes / machines);
+            json.name("saveMicros").value(saveNanos / 1000);
+            json.name("unloadMicros").value(unloadNanos / 1000);
+            json.name("loadMicros").value(loadNanos / 1000);
+            json.name("reloadSettleTicks").value(reloadSettleTicks);
+            json.endObject();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6d machines: tick p50 %7.3f ms, p99 %7.3f ms, max %7.3f ms | %8.1f MB/s allocated | %6d B heap/machine | save %7.2f ms, load %7.2f ms | settled in %d ticks",
+                    machines, tickP50 / 1e6, tickP99 / 1e6, tickMax / 1e6,
+                    allocationBytesPerSecond / (1024 * 1024), heapBytes / machines,
+                    saveNanos / 1e6, loadNanos / 1e6, settleTicks);
+        }
+    }
+}
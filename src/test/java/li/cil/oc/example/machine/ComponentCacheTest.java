@@ -0,0 +1,205 @@
+package li.cil.oc.example.machine;
+
+import cpw.mods.fml.common.gameevent.TickEvent;
+import li.cil.oc.api.machine.MachineHost;
+import li.cil.oc.api.network.Node;
+import li.cil.oc.example.machine.standin.StandInEnvironment;
+import li.cil.oc.example.machine.standin.StandIns;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.world.World;
+import net.minecraftforge.event.world.WorldEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ComponentCacheTest {
+    private final ComponentCache cache = ComponentCache.INSTANCE;
+
+    private int componentDataSize;
+
+    @BeforeClass
+    public static void install() {
+        StandIns.install();
+    }
+
+    @Before
+    public void setUp() {
+        StandIns.configureDirect();
+        Settings.componentCacheEnabled = true;
+        Settings.componentCacheSize = 1024;
+        Settings.componentCacheSeconds = 60;
+        Settings.componentCacheMemory = 64;
+        componentDataSize = StandIns.componentDataSize;
+        cache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        Settings.componentCacheEnabled = false;
+        StandIns.componentDataSize = componentDataSize;
+        cache.clear();
+    }
+
+    @Test
+    public void reattachesUnchangedComponents() {
+        final NBTTagCompound nbt = unload(machine(0));
+        assertEquals(1, cache.size());
+
+        final long reattached = cache.reattachedCount();
+        final long rejected = cache.rejectedCount();
+        reload(nbt, StandIns.world());
+        assertEquals(2, cache.reattachedCount() - reattached);
+        assertEquals(0, cache.rejectedCount() - rejected);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.estimatedBytes());
+    }
+
+    @Test
+    public void reattachedComponentsReachNewHost() {
+        final TileEntityMachine machine = reload(unload(machine(11)), StandIns.world());
+
+        int count = 0;
+        for (Node node : machine.node().neighbors()) {
+            // Still the host it was created for, which forwards to us.
+            final MachineHost host = (MachineHost) ((StandInEnvironment) node.host()).host;
+            assertNotSame(machine, host);
+            assertSame(machine.machine(), host.machine());
+            assertTrue(host.componentSlot(node.address()) >= 0);
+            assertEquals(machine.componentSlot(node.address()), host.componentSlot(node.address()));
+            assertSame(machine.internalComponents(), host.internalComponents());
+            assertEquals(machine.xPosition(), host.xPosition(), 0);
+            ++count;
+        }
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void createsChangedComponentsFresh() {
+        final NBTTagCompound nbt = unload(machine(1));
+
+        // The world was edited or restored in the meantime: what we load
+        // is not what the parked component would have saved.
+        final NBTTagCompound data = nbt.getTagList("items", 10).getCompoundTagAt(0).
+                getCompoundTag("tag").getCompoundTag("oc:data");
+        data.setByteArray("data", new byte[]{1, 2, 3});
+
+        final long reattached = cache.reattachedCount();
+        final long rejected = cache.rejectedCount();
+        final TileEntityMachine machine = reload(nbt, StandIns.world());
+        assertEquals(1, cache.reattachedCount() - reattached);
+        assertEquals(1, cache.rejectedCount() - rejected);
+
+        // The fresh component loaded the edited state.
+        final NBTTagCompound saved = new NBTTagCompound();
+        machine.writeToNBT(saved);
+        assertEquals(3, saved.getTagList("items", 10).getCompoundTagAt(0).
+                getCompoundTag("tag").getCompoundTag("oc:data").getByteArray("data").length);
+    }
+
+    @Test
+    public void rejectsOtherWorldInstance() {
+        final NBTTagCompound nbt = unload(machine(2));
+
+        final long reattached = cache.reattachedCount();
+        final long rejected = cache.rejectedCount();
+        reload(nbt, StandIns.newWorld());
+        assertEquals(0, cache.reattachedCount() - reattached);
+        assertEquals(2, cache.rejectedCount() - rejected);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void worldUnloadDropsEntries() {
+        unload(machine(3));
+        unload(machine(4));
+        assertEquals(2, cache.size());
+
+        final long evicted = cache.evictedCount();
+        cache.onWorldUnload(new WorldEvent.Unload(StandIns.newWorld()));
+        assertEquals(2, cache.size());
+
+        cache.onWorldUnload(new WorldEvent.Unload(StandIns.world()));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.estimatedBytes());
+        assertEquals(4, cache.evictedCount() - evicted);
+    }
+
+    @Test
+    public void evictsByCount() {
+        Settings.componentCacheSize = 2;
+        final NBTTagCompound oldest = unload(machine(5));
+        final NBTTagCompound newest = unload(machine(6));
+        unload(machine(7));
+        assertEquals(2, cache.size());
+
+        final long reattached = cache.reattachedCount();
+        reload(oldest, StandIns.world());
+        assertEquals(0, cache.reattachedCount() - reattached);
+        reload(newest, StandIns.world());
+        assertEquals(2, cache.reattachedCount() - reattached);
+    }
+
+    @Test
+    public void evictsByAge() throws InterruptedException {
+        Settings.componentCacheSeconds = 1;
+        unload(machine(8));
+        assertEquals(1, cache.size());
+
+        Thread.sleep(1100);
+        final long evicted = cache.evictedCount();
+        for (int i = 0; i < 20; ++i) {
+            cache.onServerTick(new TickEvent.ServerTickEvent(TickEvent.Phase.END));
+        }
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.evictedCount() - evicted);
+    }
+
+    @Test
+    public void evictsByBytes() {
+        // Two machines with two of these each don't fit into a megabyte.
+        Settings.componentCacheMemory = 1;
+        StandIns.componentDataSize = 300 * 1024;
+        unload(machine(9));
+        assertEquals(1, cache.size());
+
+        unload(machine(10));
+        assertEquals(1, cache.size());
+        assertTrue(cache.estimatedBytes() <= 1024 * 1024);
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private static TileEntityMachine machine(int x) {
+        // Two components, so we know how many get parked.
+        final TileEntityMachine machine = StandIns.newMachine(x, 64, 0);
+        for (int slot = 0; slot < machine.getSizeInventory(); ++slot) {
+            machine.setInventorySlotContents(slot, null);
+        }
+        machine.setInventorySlotContents(0, StandIns.stack("eeprom"));
+        machine.setInventorySlotContents(1, StandIns.stack("ram2"));
+        StandIns.connect(machine);
+        return machine;
+    }
+
+    private static NBTTagCompound unload(TileEntityMachine machine) {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        machine.writeToNBT(nbt);
+        machine.onChunkUnload();
+        return nbt;
+    }
+
+    private static TileEntityMachine reload(NBTTagCompound nbt, World world) {
+        final TileEntityMachine machine = new TileEntityMachine();
+        machine.readFromNBT(nbt);
+        StandIns.place(machine, machine.xCoord, machine.yCoord, machine.zCoord);
+        machine.setWorldObj(world);
+        StandIns.connect(machine);
+        return machine;
+    }
+}
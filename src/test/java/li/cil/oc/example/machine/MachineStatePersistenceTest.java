@@ -0,0 +1,152 @@
+package li.cil.oc.example.machine;
+
+import net.minecraft.nbt.NBTTagCompound;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MachineStatePersistenceTest {
+    private static final String PATH = MachineStatePersistence.stateFile(0, 1, 2, 3, -1);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MachineStatePersistence persistence = MachineStatePersistence.INSTANCE;
+
+    @Before
+    public void setUp() {
+        persistence.root = folder.getRoot();
+    }
+
+    @After
+    public void tearDown() {
+        persistence.shutdown();
+        persistence.root = null;
+    }
+
+    @Test
+    public void loadReturnsPendingSnapshot() {
+        final NBTTagCompound snapshot = snapshot("pending", 0);
+        // Holding the file's lock keeps the write from completing.
+        synchronized (persistence.lock(persistence.resolve(PATH))) {
+            persistence.save(PATH, snapshot);
+            assertSame(snapshot, persistence.load(PATH));
+            assertEquals(1, persistence.pendingCount());
+        }
+    }
+
+    @Test
+    public void flushWritesPendingSnapshots() {
+        final NBTTagCompound snapshot = snapshot("flushed", 0);
+        persistence.save(PATH, snapshot);
+        persistence.flush();
+
+        assertEquals(0, persistence.pendingCount());
+        assertTrue(persistence.resolve(PATH).isFile());
+        final NBTTagCompound loaded = persistence.load(PATH);
+        assertEquals("flushed", loaded.getString("id"));
+    }
+
+    @Test
+    public void shutdownWritesPendingSnapshots() {
+        for (int i = 0; i < 16; ++i) {
+            persistence.save(MachineStatePersistence.stateFile(0, i, 0, 0, -1), snapshot("machine" + i, 0));
+        }
+        persistence.shutdown();
+
+        assertEquals(0, persistence.pendingCount());
+        for (int i = 0; i < 16; ++i) {
+            final String path = MachineStatePersistence.stateFile(0, i, 0, 0, -1);
+            assertEquals("machine" + i, persistence.load(path).getString("id"));
+        }
+    }
+
+    @Test
+    public void flushDeletesDiscardedFiles() {
+        persistence.save(PATH, snapshot("removed", 0));
+        persistence.flush();
+        assertTrue(persistence.resolve(PATH).isFile());
+
+        persistence.discard(PATH);
+        persistence.flush();
+        assertFalse(persistence.resolve(PATH).exists());
+    }
+
+    @Test
+    public void discardedFileIsDeletedAfterPendingWrite() throws InterruptedException {
+        final File tmp = new File(persistence.resolve(PATH).getPath() + ".tmp");
+        persistence.save(PATH, snapshot("removed", 32 * 1024 * 1024));
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!tmp.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(tmp.exists());
+
+        persistence.discard(PATH);
+        persistence.flush();
+        assertEquals(0, persistence.pendingCount());
+        assertFalse(tmp.exists());
+        assertFalse(persistence.resolve(PATH).exists());
+    }
+
+    @Test
+    public void discardedFileIsKeptWhenLoadedAgain() {
+        persistence.save(PATH, snapshot("moved", 0));
+        persistence.flush();
+
+        // What block movers do: save, remove, load elsewhere.
+        persistence.discard(PATH);
+        assertEquals("moved", persistence.load(PATH).getString("id"));
+        persistence.flush();
+        assertTrue(persistence.resolve(PATH).isFile());
+    }
+
+    @Test
+    public void newerSnapshotDuringWriteIsKept() throws InterruptedException {
+        // Large enough for the write to take a while, so the newer snapshot
+        // comes in while the older one is being compressed.
+        final NBTTagCompound older = snapshot("older", 32 * 1024 * 1024);
+        final NBTTagCompound newer = snapshot("newer", 0);
+        final File tmp = new File(persistence.resolve(PATH).getPath() + ".tmp");
+
+        persistence.save(PATH, older);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!tmp.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(tmp.exists());
+        persistence.save(PATH, newer);
+
+        persistence.shutdown();
+        assertEquals(0, persistence.pendingCount());
+        assertFalse(tmp.exists());
+        assertEquals("newer", persistence.load(PATH).getString("id"));
+    }
+
+    @Test
+    public void missingFileLoadsEmptyState() {
+        assertTrue(persistence.load(PATH).hasNoTags());
+    }
+
+    private static NBTTagCompound snapshot(String id, int size) {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        nbt.setString("id", id);
+        if (size > 0) {
+            // Random, so compressing it takes as long as it can.
+            final byte[] data = new byte[size];
+            new Random(0).nextBytes(data);
+            nbt.setByteArray("data", data);
+        }
+        return nbt;
+    }
+}
@@ -0,0 +1,114 @@
+package li.cil.oc.example.machine;
+
+import li.cil.oc.example.machine.standin.StandIns;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraftforge.event.world.WorldEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MachineStateStoreTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MachineStateStore store = MachineStateStore.INSTANCE;
+
+    @BeforeClass
+    public static void install() {
+        StandIns.install();
+    }
+
+    @Before
+    public void setUp() {
+        StandIns.configureDirect();
+        Settings.stateStore = true;
+        store.root = folder.getRoot();
+    }
+
+    @After
+    public void tearDown() {
+        Settings.stateStore = false;
+        store.shutdown();
+        store.root = null;
+    }
+
+    @Test
+    public void movedMachineKeepsItsState() {
+        final TileEntityMachine machine = machine(0);
+        final NBTTagCompound nbt = save(machine);
+
+        // What block movers do: save, remove, load elsewhere.
+        machine.invalidate();
+        final TileEntityMachine moved = StandIns.newMachine(1, 64, 0);
+        moved.readFromNBT(nbt);
+        saveWorld();
+
+        assertEquals(id(nbt), id(save(moved)));
+        assertTrue(stored(nbt).hasKey("state"));
+    }
+
+    @Test
+    public void removedMachineLosesItsStateOnWorldSave() {
+        final TileEntityMachine machine = machine(0);
+        final NBTTagCompound nbt = save(machine);
+        saveWorld();
+
+        machine.invalidate();
+        assertTrue(stored(nbt).hasKey("state"));
+        saveWorld();
+        assertFalse(stored(nbt).hasKey("state"));
+    }
+
+    @Test
+    public void copiesGetIdsOfTheirOwn() {
+        final TileEntityMachine machine = machine(0);
+        final NBTTagCompound nbt = save(machine);
+
+        final TileEntityMachine copy = StandIns.newMachine(1, 64, 0);
+        copy.readFromNBT(nbt);
+        final NBTTagCompound copyNbt = save(copy);
+        assertNotEquals(id(nbt), id(copyNbt));
+
+        // Removing the copy leaves the original's state alone.
+        copy.invalidate();
+        saveWorld();
+        assertTrue(stored(nbt).hasKey("state"));
+        assertFalse(stored(copyNbt).hasKey("state"));
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private static TileEntityMachine machine(int x) {
+        final TileEntityMachine machine = StandIns.newMachine(x, 64, 0);
+        StandIns.connect(machine);
+        return machine;
+    }
+
+    private static NBTTagCompound save(TileEntityMachine machine) {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        machine.writeToNBT(nbt);
+        return nbt;
+    }
+
+    private void saveWorld() {
+        store.onWorldSave(new WorldEvent.Save(StandIns.world()));
+    }
+
+    private static long id(NBTTagCompound nbt) {
+        return nbt.getCompoundTag("machineStore").getLong("id");
+    }
+
+    private NBTTagCompound stored(NBTTagCompound nbt) {
+        final NBTTagCompound reference = nbt.getCompoundTag("machineStore");
+        store.flush();
+        return store.load(reference.getInteger("dimension"), reference.getLong("id"), reference.getInteger("checksum"));
+    }
+}
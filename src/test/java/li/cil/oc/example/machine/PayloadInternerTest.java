@@ -0,0 +1,227 @@
+package li.cil.oc.example.machine;
+
+import li.cil.oc.example.machine.standin.StandIns;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraftforge.common.util.Constants;
+import net.minecraftforge.event.world.WorldEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadInternerTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final PayloadInterner interner = PayloadInterner.INSTANCE;
+
+    @BeforeClass
+    public static void install() {
+        StandIns.install();
+    }
+
+    @Before
+    public void setUp() {
+        StandIns.configureDirect();
+        Settings.payloadInterning = true;
+        interner.configure(new String[]{"eeprom"});
+        interner.root = folder.getRoot();
+        interner.clear();
+    }
+
+    @After
+    public void tearDown() {
+        Settings.payloadInterning = false;
+        interner.clear();
+        interner.root = null;
+    }
+
+    @Test
+    public void machinesShareLoadedPayloads() {
+        final TileEntityMachine first = machineWithCode(0, 1);
+        final TileEntityMachine second = machineWithCode(1, 1);
+        assertSame(data(first), data(second));
+
+        // Saved with and without interning, neither of which is the array
+        // we loaded them from.
+        final NBTTagCompound referenced = new NBTTagCompound();
+        first.writeToNBT(referenced);
+        Settings.payloadInterning = false;
+        final NBTTagCompound inlined = new NBTTagCompound();
+        second.writeToNBT(inlined);
+        Settings.payloadInterning = true;
+
+        assertSame(data(first), data(load(referenced)));
+        assertSame(data(first), data(load(inlined)));
+    }
+
+    @Test
+    public void savedReferencesLoadAsTheirPayload() {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        machineWithCode(0, 1).writeToNBT(nbt);
+        final NBTTagCompound data = nbt.getTagList("items", Constants.NBT.TAG_COMPOUND).getCompoundTagAt(0).
+                getCompoundTag("tag").getCompoundTag("oc:data");
+        assertTrue(data.hasKey("data", Constants.NBT.TAG_COMPOUND));
+        assertArrayEquals(code(1), data(load(nbt)));
+
+        // Still loads after interning was turned off.
+        Settings.payloadInterning = false;
+        interner.clear();
+        assertArrayEquals(code(1), data(load(nbt)));
+    }
+
+    @Test
+    public void sweepDeletesUnreferencedPayloads() throws IOException {
+        // Tracking started a while ago, so what we write now is newer than
+        // the index.
+        final long created = System.currentTimeMillis() - 60 * 1000;
+        writeIndex(created);
+        interner.onWorldLoad(new WorldEvent.Load(StandIns.world()));
+        final String[] hashes = new String[6];
+        for (int seed = 1; seed < hashes.length; ++seed) {
+            hashes[seed] = hash(seed);
+        }
+
+        // One machine changes its code, one is broken, one stays as it is.
+        final TileEntityMachine changed = machineWithCode(0, 1);
+        final TileEntityMachine broken = machineWithCode(1, 2);
+        final TileEntityMachine kept = machineWithCode(2, 3);
+        save(changed, broken, kept);
+        changed.setInventorySlotContents(0, eeprom(4));
+        broken.invalidate();
+        save(changed, kept);
+
+        // Written after the index noticed the old code is gone, long enough
+        // after the payloads written before for them to look older than it.
+        save(changed, kept);
+        for (int seed = 1; seed <= 4; ++seed) {
+            assertTrue(payload(hashes[seed]).setLastModified(created + 1000));
+        }
+
+        // Referenced first after the last index was written, as if we
+        // crashed before the next one.
+        machineWithCode(3, 5).writeToNBT(new NBTTagCompound());
+
+        // Written before the index existed, or by a write that failed.
+        final File legacy = payload("ab");
+        assertTrue(legacy.createNewFile());
+        assertTrue(legacy.setLastModified(created - 60 * 1000));
+        final File tmp = new File(payload("cd").getPath() + ".tmp");
+        assertTrue(tmp.createNewFile());
+
+        interner.clear();
+        interner.onWorldLoad(new WorldEvent.Load(StandIns.world()));
+
+        assertFalse(payload(hashes[1]).exists());
+        assertFalse(payload(hashes[2]).exists());
+        assertTrue(payload(hashes[3]).exists());
+        assertTrue(payload(hashes[4]).exists());
+        assertTrue(payload(hashes[5]).exists());
+        assertTrue(legacy.exists());
+        assertFalse(tmp.exists());
+        assertEquals(2, interner.referencedCount());
+    }
+
+    @Test
+    public void nothingIsDeletedWithoutIndex() throws IOException {
+        final File orphan = payload("ab");
+        assertTrue(orphan.createNewFile());
+        assertTrue(orphan.setLastModified(1000));
+
+        interner.onWorldLoad(new WorldEvent.Load(StandIns.world()));
+        assertTrue(orphan.exists());
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private static TileEntityMachine machineWithCode(int x, int seed) {
+        final TileEntityMachine machine = StandIns.newMachine(x, 64, 0);
+        for (int slot = 0; slot < machine.getSizeInventory(); ++slot) {
+            machine.setInventorySlotContents(slot, null);
+        }
+        machine.setInventorySlotContents(0, eeprom(seed));
+        StandIns.connect(machine);
+        return machine;
+    }
+
+    private static ItemStack eeprom(int seed) {
+        final ItemStack stack = StandIns.stack("eeprom");
+        final NBTTagCompound nbt = new NBTTagCompound();
+        final NBTTagCompound data = new NBTTagCompound();
+        data.setByteArray("data", code(seed));
+        nbt.setTag("oc:data", data);
+        stack.setTagCompound(nbt);
+        return stack;
+    }
+
+    private static byte[] code(int seed) {
+        final byte[] code = new byte[1024];
+        new Random(seed).nextBytes(code);
+        return code;
+    }
+
+    private static TileEntityMachine load(NBTTagCompound nbt) {
+        final TileEntityMachine machine = new TileEntityMachine();
+        machine.readFromNBT((NBTTagCompound) nbt.copy());
+        return machine;
+    }
+
+    private static byte[] data(TileEntityMachine machine) {
+        return machine.peekStackInSlot(0).getTagCompound().getCompoundTag("oc:data").getByteArray("data");
+    }
+
+    // Saves the machines' chunks, then the world.
+    private void save(TileEntityMachine... machines) {
+        for (TileEntityMachine machine : machines) {
+            machine.writeToNBT(new NBTTagCompound());
+        }
+        interner.onWorldSave(new WorldEvent.Save(StandIns.world()));
+    }
+
+    private static String hash(int seed) {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        nbt.setByteArray("data", code(seed));
+        final NBTTagCompound reference = PayloadInterner.INSTANCE.externalize(nbt);
+        return reference.getCompoundTag("data").getString("oc-example:sha256");
+    }
+
+    // An index without references, as left by a world saved long ago.
+    private void writeIndex(long created) throws IOException {
+        final NBTTagCompound nbt = new NBTTagCompound();
+        nbt.setLong("created", created);
+        nbt.setLong("written", created);
+        nbt.setTag("owners", new NBTTagList());
+        final File file = new File(folder.getRoot(), "example_machine/payloads/references.dat");
+        assertTrue(file.getParentFile().mkdirs());
+        final OutputStream stream = new FileOutputStream(file);
+        try {
+            CompressedStreamTools.writeCompressed(nbt, stream);
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    private File payload(String hash) {
+        final File file = new File(folder.getRoot(), "example_machine/payloads/" + hash.substring(0, 2) + "/" + hash);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        return file;
+    }
+}
@@ -0,0 +1,183 @@
+package li.cil.oc.example.machine;
+
+import li.cil.oc.api.network.Node;
+import li.cil.oc.example.machine.standin.StandInMachine;
+import li.cil.oc.example.machine.standin.StandIns;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NBTTagCompound;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TileEntityMachineTest {
+    private byte[] code;
+
+    @BeforeClass
+    public static void install() {
+        StandIns.install();
+    }
+
+    @Before
+    public void setUp() {
+        StandIns.configureDirect();
+        code = new byte[1024];
+        new Random(0).nextBytes(code);
+    }
+
+    @After
+    public void tearDown() {
+        Settings.hibernationEnabled = false;
+        Settings.hibernationIdleSeconds = 300;
+        Settings.hibernationWakeSeconds = 600;
+    }
+
+    @Test
+    public void swappingEepromSavesItsStateIntoRemovedStack() {
+        final TileEntityMachine machine = machineWithEeprom(0);
+        final Node eeprom = componentNode(machine);
+        final ItemStack oldStack = machine.peekStackInSlot(0);
+
+        // What BlockMachine does when a player swaps the EEPROM.
+        machine.setInventorySlotContents(0, StandIns.stack("eeprom"));
+
+        final NBTTagCompound data = oldStack.getTagCompound().getCompoundTag("oc:data");
+        assertArrayEquals(code, data.getByteArray("data"));
+        assertEquals(eeprom.address(), data.getCompoundTag("node").getString("address"));
+
+        // The new EEPROM is a component of its own, starting out blank.
+        final ItemStack newStack = machine.peekStackInSlot(0);
+        assertNotSame(oldStack, newStack);
+        assertFalse(newStack.getTagCompound().getCompoundTag("oc:data").hasKey("node"));
+        assertNotSame(eeprom, componentNode(machine));
+        assertNull(eeprom.network());
+    }
+
+    @Test
+    public void removingEepromSavesItsStateIntoRemovedStack() {
+        final TileEntityMachine machine = machineWithEeprom(1);
+        final Node eeprom = componentNode(machine);
+        final ItemStack oldStack = machine.peekStackInSlot(0);
+
+        machine.setInventorySlotContents(0, null);
+
+        assertNull(machine.peekStackInSlot(0));
+        assertTrue(neighbors(machine).isEmpty());
+        final NBTTagCompound data = oldStack.getTagCompound().getCompoundTag("oc:data");
+        assertArrayEquals(code, data.getByteArray("data"));
+        assertEquals(eeprom.address(), data.getCompoundTag("node").getString("address"));
+    }
+
+    @Test
+    public void stackCopiesFollowTagChanges() {
+        final TileEntityMachine machine = machineWithEeprom(4);
+        final ItemStack copy = machine.getStackInSlot(0);
+        assertSame(copy, machine.getStackInSlot(0));
+
+        // A caller modifying the copy's tag after all.
+        copy.getTagCompound().setString("label", "scribbled");
+        final ItemStack fresh = machine.getStackInSlot(0);
+        assertNotSame(copy, fresh);
+        assertFalse(fresh.getTagCompound().hasKey("label"));
+
+        // Our own stack's tag being replaced.
+        final NBTTagCompound nbt = (NBTTagCompound) machine.peekStackInSlot(0).getTagCompound().copy();
+        nbt.setString("label", "renamed");
+        machine.peekStackInSlot(0).setTagCompound(nbt);
+        assertEquals("renamed", machine.getStackInSlot(0).getTagCompound().getString("label"));
+    }
+
+    @Test
+    public void automationOnlyReachesEepromSlot() {
+        final TileEntityMachine machine = machineWithEeprom(3);
+        machine.setInventorySlotContents(1, StandIns.stack("cpu1"));
+
+        for (int side = 0; side < 6; ++side) {
+            assertArrayEquals(new int[]{0}, machine.getAccessibleSlotsFromSide(side));
+        }
+        assertTrue(machine.canExtractItem(0, machine.getStackInSlot(0), 0));
+        assertFalse(machine.canExtractItem(1, machine.getStackInSlot(1), 0));
+        assertTrue(machine.canInsertItem(0, StandIns.stack("eeprom"), 0));
+        assertFalse(machine.canInsertItem(0, StandIns.stack("cpu1"), 0));
+        assertFalse(machine.canInsertItem(2, StandIns.stack("eeprom"), 0));
+    }
+
+    @Test
+    public void idleRunningMachineHibernatesAndGetsSignalsOnResume() {
+        Settings.hibernationEnabled = true;
+        Settings.hibernationIdleSeconds = 10;
+        Settings.hibernationWakeSeconds = 0;
+        final TileEntityMachine machine = machineWithEeprom(2);
+        assertTrue(machine.start());
+
+        // Busy for as long as signals keep coming in.
+        for (int i = 0; i < 30; ++i) {
+            StandIns.signal(machine.node(), "tick");
+            StandIns.advanceTime(20);
+            machine.updateEntity();
+            assertFalse(machine.isHibernating());
+        }
+
+        StandIns.advanceTime(Settings.hibernationIdleSeconds * 20);
+        machine.updateEntity();
+        assertTrue(machine.isHibernating());
+
+        StandIns.signal(machine.node(), "ping");
+        assertTrue(machine.isHibernating());
+        machine.updateEntity();
+        assertFalse(machine.isHibernating());
+        final StandInMachine resumed = (StandInMachine) machine.peekMachine();
+        assertTrue(resumed.isRunning());
+        assertEquals(Collections.singletonList("ping"), resumed.signals);
+    }
+
+    // ----------------------------------------------------------------------- //
+
+    private TileEntityMachine machineWithEeprom(int x) {
+        final TileEntityMachine machine = StandIns.newMachine(x, 64, 0);
+        for (int slot = 0; slot < machine.getSizeInventory(); ++slot) {
+            machine.setInventorySlotContents(slot, null);
+        }
+
+        final ItemStack stack = StandIns.stack("eeprom");
+        final NBTTagCompound nbt = new NBTTagCompound();
+        final NBTTagCompound data = new NBTTagCompound();
+        data.setByteArray("data", code.clone());
+        nbt.setTag("oc:data", data);
+        stack.setTagCompound(nbt);
+        machine.setInventorySlotContents(0, stack);
+
+        StandIns.connect(machine);
+        return machine;
+    }
+
+    // The node of the only component of the machine.
+    private static Node componentNode(TileEntityMachine machine) {
+        final List<Node> neighbors = neighbors(machine);
+        assertEquals(1, neighbors.size());
+        assertNotNull(neighbors.get(0).address());
+        return neighbors.get(0);
+    }
+
+    private static List<Node> neighbors(TileEntityMachine machine) {
+        final List<Node> neighbors = new ArrayList<Node>();
+        for (Node node : machine.node().neighbors()) {
+            neighbors.add(node);
+        }
+        return neighbors;
+    }
+}
@@ -0,0 +1,40 @@
+package li.cil.oc.example.machine.bench;
+
+import org.junit.Test;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs each benchmark a few times for each slot count, so that benchmarks
+ * broken by changes to the host show up with the tests, not only when
+ * someone gets around to running them.
+ */
+public class TileEntityMachineBenchmarkTest {
+    private static final int ITERATIONS = 100;
+
+    @Test
+    public void benchmarksRun() {
+        final Blackhole blackhole = new Blackhole("Today's password is swordfish. I understand instantiating Blackholes directly is dangerous.");
+        for (int slots : new int[]{5, 16, 64}) {
+            final TileEntityMachineBenchmark benchmark = new TileEntityMachineBenchmark();
+            benchmark.slots = slots;
+            benchmark.setup();
+            try {
+                for (int i = 0; i < ITERATIONS; ++i) {
+                    benchmark.updateEntity();
+                    assertNotNull(benchmark.writeToNBT());
+                    assertNotNull(benchmark.roundTrip());
+                    benchmark.componentSlot();
+                    benchmark.getStackInSlot(blackhole);
+                    benchmark.peekStackInSlot(blackhole);
+                    benchmark.internalComponents(blackhole);
+                    benchmark.itemChurn();
+                }
+            }
+            finally {
+                benchmark.tearDown();
+            }
+        }
+    }
+}